@@ -33,7 +33,13 @@ import android.util.Slog;
  */
 public abstract class AuthenticationClient extends ClientMonitor {
     private long mOpId;
-    //Abstract method it can be implemented at the time invoking
+    // monotonic timestamps of the current authentication, see AuthenticationLatencyTracker
+    private volatile long mStartNanos;
+    private volatile long mHalAcceptedNanos;
+    // start/cancel state, checked by the HAL callbacks without taking a lock
+    private final ClientLifecycle mLifecycle = new ClientLifecycle();
+    //Abstract method it can be implemented at the time invoking, typically by delegating to
+    //LockoutTracker.onFailedAttempt() / onSuccess() for the target user
     public abstract int handleFailedAttempt();
     public abstract void resetFailedAttempts();
     /*Three states for a lock have been maintained LOCKOUT_NONE, LOCKOUT_TIMED, LOCKOUT_PERMANENT */
@@ -77,45 +83,81 @@ public abstract class AuthenticationClient extends ClientMonitor {
     /*Return true irrespective of valid or invalid fingerID. This true means authentication process get completed 
     and move to process next client event*/
     public boolean onAuthenticated(int fingerId, int groupId) {
+        // a result racing a cancel is dropped, the client is done once the HAL confirms the cancel
+        if (!mLifecycle.acceptCallback()) {
+            if (DEBUG) Slog.v(TAG, "onAuthenticated() dropped, client is " + mLifecycle);
+            return mLifecycle.getState() == ClientLifecycle.STATE_DONE;
+        }
+        final AuthenticationLatencyTracker tracker = AuthenticationLatencyTracker.getInstance();
+        final long resultNanos = AuthenticationLatencyTracker.now();
+        // only the first result after the HAL accepted the request measures the wait for it
+        tracker.record(getOwnerString(), AuthenticationLatencyTracker.STAGE_RESULT,
+                mHalAcceptedNanos);
+        mHalAcceptedNanos = 0;
         boolean result = false; // intial value of authentication method compeletion status 
         boolean authenticated = fingerId != 0; // assign authenticated value only for non zero fingerId value
         // Receiver event listener already binded to the instance in the constructor and assign to the fingerprint service Interface 
         IFingerprintServiceReceiver receiver = getReceiver(); 
         // check for the any available receiver
         if (receiver != null) {
-            try {
-                // logging the authentication event 
-                MetricsLogger.action(getContext(), MetricsEvent.ACTION_FINGERPRINT_AUTH,
-                        authenticated);
-                if (!authenticated) {
-                    //on Auth failure notify the device using HAL id
-                    receiver.onAuthenticationFailed(getHalDeviceId());
-                } else {
-                    //check for debugger flags. if its enbaled 
-                    if (DEBUG) {
-                        //display logs with device owner details include stacktrace
-                        Slog.v(TAG, "onAuthenticated(owner=" + getOwnerString()
-                                + ", id=" + fingerId + ", gp=" + groupId + ")");
+            final String owner = getOwnerString();
+            final long deviceId = getHalDeviceId();
+            // the receiver is notified first, every other side effect is dispatched after it.
+            // The call itself runs on the receiver's queue so a slow app cannot stall the HAL
+            // callback thread; a success ends the operation and is never dropped.
+            if (!authenticated) {
+                //on Auth failure notify the device using HAL id
+                ReceiverDispatcher.getInstance().post(receiver,
+                        new ReceiverDispatcher.Delivery("onAuthenticationFailed") {
+                    @Override
+                    public void deliver(IFingerprintServiceReceiver r) throws RemoteException {
+                        r.onAuthenticationFailed(deviceId);
+                        tracker.record(owner, AuthenticationLatencyTracker.STAGE_RECEIVER,
+                                resultNanos);
+                    }
+                });
+            } else {
+                //check for debugger flags. if its enbaled 
+                if (DEBUG) {
+                    //display logs with device owner details include stacktrace
+                    Slog.v(TAG, "onAuthenticated(owner=" + getOwnerString()
+                            + ", id=" + fingerId + ", gp=" + groupId + ")");
+                }
+                /*
+                    check for the restricted deviceid assigned in the constructor 
+                    if it is not restricted hand over the named Fingerprint for this device id,
+                    a cached instance so nothing is allocated and the receiver needs no second
+                    lookup for the name.
+                */
+                Fingerprint named = null;
+                if (!getIsRestricted()) {
+                    named = FingerprintUtils.getInstance().getFingerprintForUser(getContext(),
+                            getTargetUserId(), groupId, fingerId, getHalDeviceId());
+                    if (named == null) {
+                        // the HAL knows a template the settings do not (yet), or the settings
+                        // are still loading; report it unnamed rather than wait for the disk
+                        named = new Fingerprint("", groupId, fingerId, getHalDeviceId());
                     }
-                    /*
-                        check for the restricted deviceid assigned in the constructor 
-                        if it is not restricted create final Fingerprint object with groupId corresponding
-                        finger print associated with this device id.
-                    */
-                    Fingerprint fp = !getIsRestricted() 
-                            ? new Fingerprint("" /* TODO */, groupId, fingerId, getHalDeviceId())
-                            : null;
-                    //overrided method from fingerprintmanager
-                    /*Called when a fingerprint is recognized  and bind the target user id and device id to the
-                    finger print object*/                          
-                    receiver.onAuthenticationSucceeded(getHalDeviceId(), fp, getTargetUserId());
                 }
-            } catch (RemoteException e) {
-                // Catch all the communication related exception during finger print authentication process
-                //Log the failure event 
-                Slog.w(TAG, "Failed to notify Authenticated:", e);
-                result = true; // client failed
+                final Fingerprint fp = named;
+                final int userId = getTargetUserId();
+                //overrided method from fingerprintmanager
+                /*Called when a fingerprint is recognized  and bind the target user id and device id to the
+                finger print object*/                          
+                ReceiverDispatcher.getInstance().post(receiver,
+                        new ReceiverDispatcher.Delivery("onAuthenticationSucceeded",
+                                true /* required */) {
+                    @Override
+                    public void deliver(IFingerprintServiceReceiver r) throws RemoteException {
+                        r.onAuthenticationSucceeded(deviceId, fp, userId);
+                        tracker.record(owner, AuthenticationLatencyTracker.STAGE_RECEIVER,
+                                resultNanos);
+                    }
+                });
             }
+            // logging the authentication event, batched on the dispatch thread
+            FingerprintEventDispatcher.getInstance().action(getContext(),
+                    MetricsEvent.ACTION_FINGERPRINT_AUTH, authenticated);
         } else {
             result = true; // client not listening
         }
@@ -123,28 +165,28 @@ public abstract class AuthenticationClient extends ClientMonitor {
         if (!authenticated) {
             //check receiver event listener available
             if (receiver != null) {
-                //call the vibrator system service to notify the error for not having finger print value
-                FingerprintUtils.vibrateFingerprintError(getContext());
+                //call the vibrator system service to notify the error for not having finger print value,
+                //off the HAL callback thread
+                FingerprintEventDispatcher.getInstance().vibrateError(getContext(),
+                        getOwnerString(), resultNanos);
             }
             // allow system-defined limit of number of attempts before giving up
             // invoking class having generic functionality for the failedAttempt
             int lockoutMode =  handleFailedAttempt();
             /*check for any other lockout state apart from Lockout_none*/
             if (lockoutMode != LOCKOUT_NONE) {
-                try {
-                    Slog.w(TAG, "Forcing lockout (fp driver code should do this!), mode(" +
-                            lockoutMode + ")");
-                    stop(false);
-                    //check Lockout_timer and if it available set error code as lock timed out otherwise
-                    //set erroe code as permanent lock
-                    int errorCode = lockoutMode == LOCKOUT_TIMED ?
-                            FingerprintManager.FINGERPRINT_ERROR_LOCKOUT :
-                            FingerprintManager.FINGERPRINT_ERROR_LOCKOUT_PERMANENT;
-                    //notify the error through receiver error callback        
-                    receiver.onError(getHalDeviceId(), errorCode, 0 /* vendorCode */);
-                } catch (RemoteException e) {
-                    //record a log at the notification failure
-                    Slog.w(TAG, "Failed to notify lockout:", e);
+                Slog.w(TAG, "Forcing lockout (fp driver code should do this!), mode(" +
+                        lockoutMode + ")");
+                stop(false);
+                //check Lockout_timer and if it available set error code as lock timed out otherwise
+                //set erroe code as permanent lock
+                final int errorCode = lockoutMode == LOCKOUT_TIMED ?
+                        FingerprintManager.FINGERPRINT_ERROR_LOCKOUT :
+                        FingerprintManager.FINGERPRINT_ERROR_LOCKOUT_PERMANENT;
+                //notify the error through receiver error callback, queued behind the failure
+                if (receiver != null) {
+                    ReceiverDispatcher.getInstance().postError(receiver, getHalDeviceId(),
+                            errorCode, 0 /* vendorCode */);
                 }
             }
             //set the result value
@@ -153,12 +195,16 @@ public abstract class AuthenticationClient extends ClientMonitor {
             //check receiver event listener available
             if (receiver != null) {
                 // Notify the the fingerprint is matched and success to proceed
-                FingerprintUtils.vibrateFingerprintSuccess(getContext());
+                FingerprintEventDispatcher.getInstance().vibrateSuccess(getContext(),
+                        getOwnerString(), resultNanos);
             }
             result |= true; // we have a valid fingerprint, done
             // Failed attempts counted so far have to reset to zero after a single success
             resetFailedAttempts();
         }
+        if (result) {
+            mLifecycle.finish();
+        }
         return result;
     }
 
@@ -167,8 +213,28 @@ public abstract class AuthenticationClient extends ClientMonitor {
      */
     @Override
     public int start() {
+        if (!mLifecycle.start()) {
+            // cancelled before it started, or started twice: nothing to run
+            Slog.w(TAG, "startAuthentication: client is " + mLifecycle);
+            return ERROR_ESRCH;
+        }
+        final int result = startAuthentication();
+        if (result != 0) {
+            // the operation never ran: no cancel to send to the HAL, no callback to accept
+            mLifecycle.finish();
+        }
+        return result;
+    }
+
+    /**
+     * Sends the request to the HAL.
+     * @return 0 if the HAL accepted it
+     */
+    private int startAuthentication() {
+        mStartNanos = AuthenticationLatencyTracker.now();
+        mHalAcceptedNanos = 0;
         //get fingerprint service provider
-        IBiometricsFingerprint daemon = getFingerprintDaemon();
+        final IBiometricsFingerprint daemon = getFingerprintDaemon();
         //notify error msg(fingerprint HAL is dead) if no service available
         if (daemon == null) {
             Slog.w(TAG, "start authentication: no fingerprint HAL!");
@@ -176,8 +242,19 @@ public abstract class AuthenticationClient extends ClientMonitor {
         }
         try {
             //getGroupId() - Gets the group id specified when the fingerprint was enrolled
-            //authenticate with op id provided 
-            final int result = daemon.authenticate(mOpId, getGroupId());
+            //authenticate with op id provided, failing fast while the HAL keeps failing requests
+            final int result = HalCircuitBreaker.getInstance().execute(
+                    new HalCircuitBreaker.Request() {
+                @Override
+                public int run() throws RemoteException {
+                    return daemon.authenticate(mOpId, getGroupId());
+                }
+            });
+            if (result == HalCircuitBreaker.RESULT_REJECTED) {
+                Slog.w(TAG, "startAuthentication: HAL circuit open");
+                onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+                return ERROR_ESRCH;
+            }
             // Log error on Invoked authentication function fails or finger print dies
             if (result != 0) {
                 Slog.w(TAG, "startAuthentication failed, result=" + result);
@@ -187,6 +264,9 @@ public abstract class AuthenticationClient extends ClientMonitor {
                 onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
                 return result;
             }
+            mHalAcceptedNanos = AuthenticationLatencyTracker.now();
+            AuthenticationLatencyTracker.getInstance().record(getOwnerString(),
+                    AuthenticationLatencyTracker.STAGE_HAL_ACCEPT, mStartNanos);
             //initiate the authenticating process and log along with owner details 
             if (DEBUG) Slog.w(TAG, "client " + getOwnerString() + " is authenticating...");
         } catch (RemoteException e) {
@@ -204,9 +284,8 @@ public abstract class AuthenticationClient extends ClientMonitor {
     */
     @Override
     public int stop(boolean initiatedByClient) {
-        //boolean variable mAlreadyCancelled shows the user is already authenticated
-        // And then stopped further authentication
-        if (mAlreadyCancelled) {
+        //only the first stop of a running client reaches the HAL, whichever thread it comes from
+        if (!mLifecycle.beginCancel()) {
             Slog.w(TAG, "stopAuthentication: already cancelled!");
             return 0;
         }
@@ -215,6 +294,7 @@ public abstract class AuthenticationClient extends ClientMonitor {
         //No service available then stop the authentication process and notify the error
         if (daemon == null) {
             Slog.w(TAG, "stopAuthentication: no fingerprint HAL!");
+            mLifecycle.cancelFailed();
             return ERROR_ESRCH; //Likely fingerprint HAL is dead.
         }
         try {
@@ -222,17 +302,29 @@ public abstract class AuthenticationClient extends ClientMonitor {
             // check for any service cancellation, if it's cancelled stop the authentication and notify 
             if (result != 0) {
                 Slog.w(TAG, "stopAuthentication failed, result=" + result);
+                mLifecycle.cancelFailed();
                 return result;
             }
             if (DEBUG) Slog.w(TAG, "client " + getOwnerString() + " is no longer authenticating");
         } catch (RemoteException e) {
             Slog.e(TAG, "stopAuthentication failed", e);
+            mLifecycle.cancelFailed();
             return ERROR_ESRCH; //Likely fingerprint HAL is dead.
         }
-        mAlreadyCancelled = true; // Make it as true is helpful to avoid further authentication
         return 0; // success
     }
 
+    @Override
+    public boolean onError(int error, int vendorCode) {
+        // queued behind the results already posted for the receiver, see ReceiverDispatcher
+        final IFingerprintServiceReceiver receiver = getReceiver();
+        if (receiver != null) {
+            ReceiverDispatcher.getInstance().postError(receiver, getHalDeviceId(), error,
+                    vendorCode);
+        }
+        return true; // errors always remove current client
+    }
+
     // remaining - number of remaining available valid attempts to authenticate fingerId before locking
     // fingerId - fingerprint provided by the user
     // groupId - fingerId belongs to the groupId
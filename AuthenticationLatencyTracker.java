@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Breaks the latency of an authentication down into stages and aggregates each stage into a
+ * per-owner histogram.
+ *
+ * Recording is lock free: a map lookup plus a few atomic increments. Histograms use power of two
+ * buckets, so the reported percentiles are upper bounds accurate to within a factor of two, which
+ * is enough to tell where time goes.
+ */
+public class AuthenticationLatencyTracker {
+    /** start() called until the HAL accepted the authenticate request. */
+    public static final int STAGE_HAL_ACCEPT = 0;
+    /** HAL accepted the request until it reported a result (includes the user's touch). */
+    public static final int STAGE_RESULT = 1;
+    /** HAL result until the receiver was notified. */
+    public static final int STAGE_RECEIVER = 2;
+    /** HAL result until the haptic feedback was dispatched. */
+    public static final int STAGE_HAPTIC = 3;
+    private static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {
+            "halAccept", "result", "receiver", "haptic"
+    };
+
+    // bounds memory if many apps authenticate, the rest are aggregated together
+    private static final int MAX_OWNERS = 32;
+    private static final String OTHER_OWNERS = "<other>";
+
+    private static final Object sInstanceLock = new Object();
+    private static AuthenticationLatencyTracker sInstance;
+
+    private final ConcurrentHashMap<String, Histogram[]> mOwners = new ConcurrentHashMap<>();
+
+    public static AuthenticationLatencyTracker getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new AuthenticationLatencyTracker();
+            }
+        }
+        return sInstance;
+    }
+
+    private AuthenticationLatencyTracker() {
+    }
+
+    /**
+     * @return the monotonic timestamp the stages are measured with
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records one stage that started at {@code startNanos} and ended now.
+     * @param owner package of the client being measured
+     * @param stage one of the STAGE_ constants
+     * @param startNanos timestamp from {@link #now()}, ignored if 0
+     */
+    public void record(String owner, int stage, long startNanos) {
+        if (startNanos == 0) {
+            return;
+        }
+        getHistograms(owner)[stage].add(now() - startNanos);
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("AuthenticationLatencyTracker (us, p50/p99 are bucket upper bounds):");
+        for (Map.Entry<String, Histogram[]> entry : mOwners.entrySet()) {
+            pw.println("  " + entry.getKey() + ":");
+            Histogram[] histograms = entry.getValue();
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                Histogram h = histograms[stage];
+                pw.println("    " + STAGE_NAMES[stage]
+                        + ": count=" + h.getCount()
+                        + " p50=" + h.getPercentile(50) / 1000
+                        + " p99=" + h.getPercentile(99) / 1000
+                        + " max=" + h.getMax() / 1000);
+            }
+        }
+    }
+
+    private Histogram[] getHistograms(String owner) {
+        if (owner == null) {
+            owner = OTHER_OWNERS;
+        }
+        Histogram[] histograms = mOwners.get(owner);
+        if (histograms == null && mOwners.size() >= MAX_OWNERS) {
+            // past the cap every new owner shares one entry, created at most once
+            owner = OTHER_OWNERS;
+            histograms = mOwners.get(owner);
+        }
+        if (histograms == null) {
+            Histogram[] created = new Histogram[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                created[i] = new Histogram();
+            }
+            histograms = mOwners.putIfAbsent(owner, created);
+            if (histograms == null) {
+                histograms = created;
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Lock free histogram of durations in nanoseconds. Bucket i counts values whose highest set
+     * bit is bit i - 1, i.e. values in [2^(i-1), 2^i).
+     */
+    private static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(Long.SIZE + 1);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given percentile, capped at the max
+         */
+        long getPercentile(int percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (count * percentile + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length(); i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target) {
+                    final long upper = i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lifecycle of a {@link ClientMonitor}, shared by the clients in place of a plain cancelled flag.
+ *
+ * <ul>
+ * <li>IDLE to STARTED: {@link #start()}</li>
+ * <li>STARTED to CANCELLING: {@link #beginCancel()}, back with {@link #cancelFailed()}</li>
+ * <li>IDLE to DONE: {@link #beginCancel()} before the client started</li>
+ * <li>STARTED or CANCELLING to DONE: {@link #finish()}</li>
+ * </ul>
+ *
+ * Every transition is a compare-and-set, so stop() racing a HAL callback on another thread needs
+ * no lock: exactly one caller wins each transition. Only one stop() ever reaches the HAL, and HAL
+ * callbacks arriving once the client is cancelling or done are dropped.
+ */
+final class ClientLifecycle {
+    static final int STATE_IDLE = 0;
+    static final int STATE_STARTED = 1;
+    static final int STATE_CANCELLING = 2;
+    static final int STATE_DONE = 3;
+
+    private static final String[] STATE_NAMES = {
+            "idle", "started", "cancelling", "done"
+    };
+
+    // across all clients, for dumpsys
+    private static final AtomicLong sDuplicateCancels = new AtomicLong();
+    private static final AtomicLong sDroppedCallbacks = new AtomicLong();
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+
+    /**
+     * @return true if the client moved from IDLE to STARTED
+     */
+    boolean start() {
+        return mState.compareAndSet(STATE_IDLE, STATE_STARTED);
+    }
+
+    /**
+     * Claims the right to cancel the HAL operation.
+     * @return true if the caller must cancel it; false if the client never started, in which
+     *         case it is now DONE, or another caller already cancelled or finished it
+     */
+    boolean beginCancel() {
+        while (true) {
+            final int state = mState.get();
+            if (state == STATE_STARTED) {
+                if (mState.compareAndSet(STATE_STARTED, STATE_CANCELLING)) {
+                    return true;
+                }
+            } else if (state == STATE_IDLE) {
+                if (mState.compareAndSet(STATE_IDLE, STATE_DONE)) {
+                    return false;
+                }
+            } else {
+                sDuplicateCancels.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The HAL refused the cancel, the operation is still running and may be cancelled again.
+     */
+    void cancelFailed() {
+        mState.compareAndSet(STATE_CANCELLING, STATE_STARTED);
+    }
+
+    /**
+     * @return true if HAL results should be handled; otherwise the drop is counted
+     */
+    boolean acceptCallback() {
+        if (mState.get() == STATE_STARTED) {
+            return true;
+        }
+        sDroppedCallbacks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * The client is done, from now on every callback is dropped.
+     * @return false if it was already done
+     */
+    boolean finish() {
+        return mState.getAndSet(STATE_DONE) != STATE_DONE;
+    }
+
+    int getState() {
+        return mState.get();
+    }
+
+    @Override
+    public String toString() {
+        return STATE_NAMES[mState.get()];
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("ClientLifecycle: duplicateCancels=" + sDuplicateCancels.get()
+                + " droppedCallbacks=" + sDroppedCallbacks.get());
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.logging.MetricsLogger;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Serializes {@link ClientMonitor} operations against the HAL.
+ *
+ * At most one client runs at a time. A new client waits in a priority queue while the current one
+ * is stopped; it starts when the service reports the current one done through
+ * {@link #onClientFinished}. While clients are queued:
+ * <ul>
+ * <li>a client of equal or higher priority preempts the running one, as does any client
+ * arriving during an authenticate; the running client is cancelled only once however many
+ * clients queue up behind it;</li>
+ * <li>a queued authenticate from the same owner as a newer one is replaced, so a burst of
+ * authenticate/cancel calls from an app reaches the HAL as a single authenticate;</li>
+ * <li>a client cancelled before it started is dropped without any HAL call.</li>
+ * </ul>
+ * A dropped client is still completed: its receiver gets FINGERPRINT_ERROR_CANCELED and the
+ * client is destroyed, as is a client that fails to start. A stop the HAL refuses is retried by
+ * the next schedule or cancel. Clients are started and stopped outside the scheduler lock.
+ */
+public class ClientScheduler {
+    private static final String TAG = "FingerprintClientScheduler";
+    private static final boolean DEBUG = false;
+
+    // enroll is an explicit user action, auth is what the user is waiting on, removal can wait
+    public static final int PRIORITY_ENROLL = 3;
+    public static final int PRIORITY_AUTH = 2;
+    public static final int PRIORITY_REMOVE = 1;
+    public static final int PRIORITY_OTHER = 0;
+
+    private final Context mContext;
+
+    @GuardedBy("this")
+    private ClientMonitor mCurrentClient;
+    // true once stop() was called on mCurrentClient for a preemption
+    @GuardedBy("this")
+    private boolean mCurrentStopping;
+    // ordered by priority, then by arrival
+    @GuardedBy("this")
+    private final ArrayList<Pending> mPending = new ArrayList<>();
+
+    // statistics
+    @GuardedBy("this")
+    private long mScheduledCount;
+    @GuardedBy("this")
+    private long mCoalescedCount;
+    @GuardedBy("this")
+    private long mCancelledCount;
+    @GuardedBy("this")
+    private long mPreemptionCount;
+    @GuardedBy("this")
+    private long mTotalQueueMs;
+    @GuardedBy("this")
+    private long mMaxQueueMs;
+    @GuardedBy("this")
+    private long mStartedCount;
+
+    private static final class Pending {
+        final ClientMonitor mClient;
+        final int mPriority;
+        final long mEnqueueTime;
+
+        Pending(ClientMonitor client, int priority, long enqueueTime) {
+            mClient = client;
+            mPriority = priority;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+
+    public ClientScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return the priority the scheduler gives the client
+     */
+    public static int getPriority(ClientMonitor client) {
+        if (client instanceof EnrollClient) {
+            return PRIORITY_ENROLL;
+        } else if (client instanceof AuthenticationClient) {
+            return PRIORITY_AUTH;
+        } else if (client instanceof RemovalClient) {
+            return PRIORITY_REMOVE;
+        }
+        return PRIORITY_OTHER;
+    }
+
+    /**
+     * Starts the client right away if the HAL is idle, otherwise queues it.
+     */
+    public void schedule(ClientMonitor client) {
+        final ArrayList<ClientMonitor> dropped = new ArrayList<>();
+        final ClientMonitor preempted;
+        final ClientMonitor next;
+        synchronized (this) {
+            preempted = scheduleLocked(client, dropped);
+            next = takeNextLocked();
+        }
+        // outside the lock: clients call into the HAL and their receivers, and the service may
+        // call back into the scheduler
+        for (int i = 0; i < dropped.size(); i++) {
+            dropClient(dropped.get(i));
+        }
+        if (preempted != null) {
+            stopClient(preempted, false /* initiatedByClient */);
+        }
+        startClients(next);
+    }
+
+    /**
+     * @return the running client to stop for a preemption, or null
+     */
+    @GuardedBy("this")
+    private ClientMonitor scheduleLocked(ClientMonitor client, ArrayList<ClientMonitor> dropped) {
+        mScheduledCount++;
+        final int priority = getPriority(client);
+        if (priority == PRIORITY_AUTH) {
+            // a newer authenticate from the same owner supersedes a queued one
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                ClientMonitor queued = mPending.get(i).mClient;
+                if (queued instanceof AuthenticationClient
+                        && queued.getOwnerString().equals(client.getOwnerString())) {
+                    if (DEBUG) Slog.v(TAG, "Coalescing auth for " + client.getOwnerString());
+                    mPending.remove(i);
+                    mCoalescedCount++;
+                    dropped.add(queued);
+                }
+            }
+        }
+        insertLocked(new Pending(client, priority, SystemClock.uptimeMillis()));
+
+        if (mCurrentClient != null && !mCurrentStopping
+                && (priority >= getPriority(mCurrentClient)
+                        || mCurrentClient instanceof AuthenticationClient)) {
+            // preempt; the next client starts once the HAL confirms the cancel. A running
+            // authenticate is always preempted since it may wait for a finger indefinitely.
+            mCurrentStopping = true;
+            mPreemptionCount++;
+            if (DEBUG) Slog.v(TAG, "Preempting " + mCurrentClient.getOwnerString());
+            return mCurrentClient;
+        }
+        return null;
+    }
+
+    /**
+     * Cancels a client. A queued client is dropped without touching the HAL, its receiver is
+     * told it was canceled; the running one is stopped.
+     * @param initiatedByClient passed on to {@link ClientMonitor#stop}
+     */
+    public void cancel(ClientMonitor client, boolean initiatedByClient) {
+        boolean queued = false;
+        boolean running = false;
+        synchronized (this) {
+            for (int i = 0; i < mPending.size(); i++) {
+                if (mPending.get(i).mClient == client) {
+                    mPending.remove(i);
+                    mCancelledCount++;
+                    queued = true;
+                    break;
+                }
+            }
+            if (!queued && client == mCurrentClient && !mCurrentStopping) {
+                mCurrentStopping = true;
+                running = true;
+            }
+        }
+        if (queued) {
+            dropClient(client);
+        } else if (running) {
+            stopClient(client, initiatedByClient);
+        }
+    }
+
+    /**
+     * Completes a client the scheduler dropped before it started: the caller's request ends with
+     * FINGERPRINT_ERROR_CANCELED and the client releases its binder death link.
+     */
+    private void dropClient(ClientMonitor client) {
+        client.onError(FingerprintManager.FINGERPRINT_ERROR_CANCELED, 0 /* vendorCode */);
+        client.destroy();
+    }
+
+    /**
+     * Stops the running client. If the HAL refuses, or is gone, the client keeps running and
+     * the next schedule() or cancel() tries again.
+     */
+    private void stopClient(ClientMonitor client, boolean initiatedByClient) {
+        final int result = client.stop(initiatedByClient);
+        if (result == 0) {
+            return;
+        }
+        Slog.w(TAG, "Client " + client.getOwnerString() + " failed to stop, result=" + result);
+        synchronized (this) {
+            if (client == mCurrentClient) {
+                mCurrentStopping = false;
+            }
+        }
+    }
+
+    /**
+     * Starts the client taken off the queue, and the ones after it for as long as starting
+     * fails. A client that failed to start is destroyed.
+     */
+    private void startClients(ClientMonitor next) {
+        while (next != null) {
+            final int result = next.start();
+            if (result == 0) {
+                return;
+            }
+            // the client is done without ever reaching the HAL, move on
+            Slog.w(TAG, "Client " + next.getOwnerString() + " failed to start, result="
+                    + result);
+            next.destroy();
+            synchronized (this) {
+                if (next != mCurrentClient) {
+                    return;
+                }
+                mCurrentClient = null;
+                mCurrentStopping = false;
+                next = takeNextLocked();
+            }
+        }
+    }
+
+    /**
+     * Called by the service when the current client is done, either because it completed or
+     * because the HAL confirmed its cancellation. Starts the next queued client.
+     */
+    public void onClientFinished(ClientMonitor client) {
+        final ClientMonitor next;
+        synchronized (this) {
+            if (client != mCurrentClient) {
+                return;
+            }
+            mCurrentClient = null;
+            mCurrentStopping = false;
+            next = takeNextLocked();
+        }
+        startClients(next);
+    }
+
+    public synchronized ClientMonitor getCurrentClient() {
+        return mCurrentClient;
+    }
+
+    public synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("ClientScheduler:");
+        pw.println("  current="
+                + (mCurrentClient != null ? mCurrentClient.getOwnerString() : null)
+                + " queued=" + mPending.size()
+                + " scheduled=" + mScheduledCount
+                + " started=" + mStartedCount
+                + " coalesced=" + mCoalescedCount
+                + " cancelled=" + mCancelledCount
+                + " preemptions=" + mPreemptionCount
+                + " avgQueueMs=" + (mStartedCount > 0 ? mTotalQueueMs / mStartedCount : 0)
+                + " maxQueueMs=" + mMaxQueueMs);
+    }
+
+    @GuardedBy("this")
+    private void insertLocked(Pending pending) {
+        int index = mPending.size();
+        while (index > 0 && mPending.get(index - 1).mPriority < pending.mPriority) {
+            index--;
+        }
+        mPending.add(index, pending);
+    }
+
+    /**
+     * Makes the first queued client the current one, if the HAL is idle.
+     * @return the client the caller must start outside the lock, or null
+     */
+    @GuardedBy("this")
+    private ClientMonitor takeNextLocked() {
+        if (mCurrentClient != null || mPending.isEmpty()) {
+            return null;
+        }
+        Pending next = mPending.remove(0);
+        final long queueMs = SystemClock.uptimeMillis() - next.mEnqueueTime;
+        mStartedCount++;
+        mTotalQueueMs += queueMs;
+        mMaxQueueMs = Math.max(mMaxQueueMs, queueMs);
+        MetricsLogger.histogram(mContext, "fingerprint_client_queue_ms", (int) queueMs);
+        mCurrentClient = next.mClient;
+        return next.mClient;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Map from userId to a per-user object, optimized for a small set of users that is read far more
+ * often than it changes.
+ *
+ * The keys and values live in sorted arrays published through a single volatile reference.
+ * Lookups binary search the current table without taking any lock, so they are wait-free.
+ * Insertions and removals copy the table under a lock and publish the new one; they only happen
+ * when a user is first seen or removed.
+ */
+class ConcurrentUserRegistry<E> {
+    private static final Table EMPTY = new Table(new int[0], new Object[0]);
+
+    private final Object mLock = new Object();
+
+    // never mutated once published, replaced as a whole
+    private volatile Table mTable = EMPTY;
+
+    private static final class Table {
+        final int[] mKeys;
+        final Object[] mValues;
+
+        Table(int[] keys, Object[] values) {
+            mKeys = keys;
+            mValues = values;
+        }
+    }
+
+    /**
+     * @return the value for the user, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int userId) {
+        final Table table = mTable;
+        final int index = Arrays.binarySearch(table.mKeys, userId);
+        return index >= 0 ? (E) table.mValues[index] : null;
+    }
+
+    /**
+     * Returns the value for the user, creating it with the factory if needed. The factory runs at
+     * most once per user, under the registry's write lock, so it must be cheap.
+     */
+    public E computeIfAbsent(int userId, IntFunction<? extends E> factory) {
+        E value = get(userId);
+        if (value != null) {
+            return value;
+        }
+        synchronized (mLock) {
+            // another thread may have won the race while we were waiting
+            value = get(userId);
+            if (value == null) {
+                value = factory.apply(userId);
+                putLocked(userId, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the value of the user.
+     * @return the removed value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public E remove(int userId) {
+        synchronized (mLock) {
+            final Table table = mTable;
+            final int index = Arrays.binarySearch(table.mKeys, userId);
+            if (index < 0) {
+                return null;
+            }
+            final int size = table.mKeys.length;
+            int[] keys = new int[size - 1];
+            Object[] values = new Object[size - 1];
+            System.arraycopy(table.mKeys, 0, keys, 0, index);
+            System.arraycopy(table.mValues, 0, values, 0, index);
+            System.arraycopy(table.mKeys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(table.mValues, index + 1, values, index, size - index - 1);
+            mTable = new Table(keys, values);
+            return (E) table.mValues[index];
+        }
+    }
+
+    /**
+     * @return the values present at the time of the call, ordered by userId
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<E> values() {
+        final Object[] values = mTable.mValues;
+        ArrayList<E> result = new ArrayList<>(values.length);
+        for (Object value : values) {
+            result.add((E) value);
+        }
+        return result;
+    }
+
+    public int size() {
+        return mTable.mKeys.length;
+    }
+
+    @GuardedBy("mLock")
+    private void putLocked(int userId, E value) {
+        final Table table = mTable;
+        final int size = table.mKeys.length;
+        // callers made sure the key is absent, so this is the insertion point
+        final int index = ~Arrays.binarySearch(table.mKeys, userId);
+        int[] keys = new int[size + 1];
+        Object[] values = new Object[size + 1];
+        System.arraycopy(table.mKeys, 0, keys, 0, index);
+        System.arraycopy(table.mValues, 0, values, 0, index);
+        keys[index] = userId;
+        values[index] = value;
+        System.arraycopy(table.mKeys, index, keys, index + 1, size - index);
+        System.arraycopy(table.mValues, index, values, index + 1, size - index);
+        mTable = new Table(keys, values);
+    }
+}
@@ -22,10 +22,13 @@ import android.hardware.fingerprint.FingerprintManager;
 import android.hardware.fingerprint.IFingerprintServiceReceiver;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
+import com.android.internal.os.BackgroundThread;
 
 import java.util.Arrays;
 
@@ -35,7 +38,42 @@ import java.util.Arrays;
 public abstract class EnrollClient extends ClientMonitor {
     private static final long MS_PER_SEC = 1000;//number of milli seconds for a second
     private static final int ENROLLMENT_TIMEOUT_MS = 60 * 1000; // 1 minute. the time in which enrollment time will be expired
+    private static final long MIN_PROGRESS_INTERVAL_MS = 100; // progress closer together than this is coalesced
+    private static final long MIN_HAPTIC_INTERVAL_MS = 250; // samples closer together than this share one vibration
     private byte[] mCryptoToken; //the fingerprint public key 
+    // drops progress that races a cancel, see ClientLifecycle
+    private final ClientLifecycle mLifecycle = new ClientLifecycle();
+
+    // HAL callback thread only
+    private long mLastHapticTime;
+
+    // progress coalescing, shared between the HAL callback thread and the flush on BackgroundThread
+    private final Object mProgressLock = new Object();
+    @GuardedBy("mProgressLock")
+    private long mLastProgressTime;
+    @GuardedBy("mProgressLock")
+    private int mPendingFingerId;
+    @GuardedBy("mProgressLock")
+    private int mPendingGroupId;
+    // 0 when no progress is waiting to be delivered
+    @GuardedBy("mProgressLock")
+    private int mPendingRemaining;
+
+    private final Runnable mFlushProgress = new Runnable() {
+        @Override
+        public void run() {
+            final IFingerprintServiceReceiver receiver = getReceiver();
+            synchronized (mProgressLock) {
+                if (mPendingRemaining == 0 || receiver == null) {
+                    return;
+                }
+                final int remaining = mPendingRemaining;
+                mPendingRemaining = 0;
+                mLastProgressTime = SystemClock.uptimeMillis();
+                notifyEnrollResult(receiver, mPendingFingerId, mPendingGroupId, remaining);
+            }
+        }
+    };
 
     public EnrollClient(Context context, long halDeviceId, IBinder token,
             IFingerprintServiceReceiver receiver, int userId, int groupId, byte [] cryptoToken,
@@ -48,6 +86,15 @@ public abstract class EnrollClient extends ClientMonitor {
     @Override
     public boolean onEnrollResult(int fingerId, int groupId, int remaining) {
 
+        //samples racing a cancel are dropped, the client is done once the HAL confirms the cancel
+        if (!mLifecycle.acceptCallback()) {
+            if (remaining == 0 && mLifecycle.getState() == ClientLifecycle.STATE_CANCELLING) {
+                //the HAL stored the template before it saw the cancel, keep the settings in sync
+                persistEnrolled(fingerId, groupId, null);
+            }
+            return mLifecycle.getState() == ClientLifecycle.STATE_DONE;
+        }
+
         //checks if the given groupId is not same as the group id of the fingerprint set
         if (groupId != getGroupId()) {  
 
@@ -56,19 +103,21 @@ public abstract class EnrollClient extends ClientMonitor {
                     " getGroupId():" + getGroupId()); 
 
         }
-        if (remaining == 0) {
-
-            //creates a new instance of FingerPrint and adds the details of user fingerprint by executing the runnables in the background
-            FingerprintUtils.getInstance().addFingerprintForUser(getContext(), fingerId,
-                    getTargetUserId());
+        final boolean done = remaining == 0
+                ? sendEnrollFinished(fingerId, groupId)
+                : sendEnrollResult(fingerId, groupId, remaining); //returns true if enrollment is completed
+        if (done) {
+            mLifecycle.finish();
         }
-
-        return sendEnrollResult(fingerId, groupId, remaining); //returns true if enrollment is completed
+        return done;
     }
 
 
 
     /*
+     * Reports a partial sample. Haptics are throttled and progress closer together than
+     * MIN_PROGRESS_INTERVAL_MS is coalesced, only the latest one is delivered once the interval
+     * has passed.
      * @return true if we're done.
      */
     private boolean sendEnrollResult(int fpId, int groupId, int remaining) {
@@ -79,25 +128,109 @@ public abstract class EnrollClient extends ClientMonitor {
         if (receiver == null)
             return true; // client not listening
 
-        //the device vibrates for 30ms if the enrollment is sucessful
-        FingerprintUtils.vibrateFingerprintSuccess(getContext()); 
+        final long now = SystemClock.uptimeMillis();
+        final FingerprintEventDispatcher dispatcher = FingerprintEventDispatcher.getInstance();
 
-        //the context of the fingerprint service and the enrollment status is logged
-        MetricsLogger.action(getContext(), MetricsEvent.ACTION_FINGERPRINT_ENROLL); 
+        //the device vibrates for 30ms, at most once per MIN_HAPTIC_INTERVAL_MS
+        if (now - mLastHapticTime >= MIN_HAPTIC_INTERVAL_MS) {
+            mLastHapticTime = now;
+            dispatcher.vibrateSuccess(getContext());
+        }
 
-        try {
+        //the context of the fingerprint service and the enrollment status is logged
+        dispatcher.action(getContext(), MetricsEvent.ACTION_FINGERPRINT_ENROLL);
+
+        synchronized (mProgressLock) {
+            final long wait = mLastProgressTime + MIN_PROGRESS_INTERVAL_MS - now;
+            if (wait > 0) {
+                //too soon, keep only the latest progress and deliver it when the interval ends
+                final boolean flushScheduled = mPendingRemaining != 0;
+                mPendingFingerId = fpId;
+                mPendingGroupId = groupId;
+                mPendingRemaining = remaining;
+                if (!flushScheduled) {
+                    BackgroundThread.getHandler().postDelayed(mFlushProgress, wait);
+                }
+                return false;
+            }
+            //anything pending is older than this sample
+            mPendingRemaining = 0;
+            mLastProgressTime = now;
+            return notifyEnrollResult(receiver, fpId, groupId, remaining);
+        }
+    }
 
-            //updates the group's authenticator id after the enrollment is done
-            receiver.onEnrollResult(getHalDeviceId(), fpId, groupId, remaining); 
-            return remaining == 0; //sends the result of the enrollment
+    /*
+     * Reports the final sample. The fingerprint is added and the receiver notified on the user's
+     * I/O queue, so the HAL callback thread is free for the next event right away, and the client
+     * only hears of the new fingerprint once it is in the settings.
+     * @return true, enrollment is done
+     */
+    private boolean sendEnrollFinished(final int fpId, final int groupId) {
+        synchronized (mProgressLock) {
+            //the final result supersedes any coalesced progress
+            mPendingRemaining = 0;
+        }
+        BackgroundThread.getHandler().removeCallbacks(mFlushProgress);
+
+        final Context context = getContext();
+        final IFingerprintServiceReceiver receiver = getReceiver();
+        if (receiver != null) {
+            FingerprintEventDispatcher.getInstance().vibrateSuccess(context);
+            FingerprintEventDispatcher.getInstance().action(context,
+                    MetricsEvent.ACTION_FINGERPRINT_ENROLL);
+        }
+        persistEnrolled(fpId, groupId, receiver);
+        return true;
+    }
 
-        } catch (RemoteException e) {
+    /*
+     * Adds the enrolled fingerprint on the user's I/O queue, then hands the final result for the
+     * receiver, if any, to its dispatcher queue. The app is never called from the I/O thread,
+     * which is shared by every user's state writes.
+     */
+    private void persistEnrolled(final int fpId, final int groupId,
+            final IFingerprintServiceReceiver receiver) {
+        final Context context = getContext();
+        final int userId = getTargetUserId();
+        final ReceiverDispatcher.Delivery finished = receiver != null
+                ? newEnrollResult(fpId, groupId, 0) : null;
+        FingerprintIoExecutor.getInstance().execute(userId, new Runnable() {
+            @Override
+            public void run() {
+                //creates a new instance of FingerPrint and adds the details of user fingerprint
+                FingerprintUtils.getInstance().addFingerprintForUser(context, fpId, userId);
+                if (finished != null) {
+                    //only queues the call, the receiver is notified on the dispatcher's pool
+                    ReceiverDispatcher.getInstance().post(receiver, finished);
+                }
+            }
+        });
+    }
 
-            //if their is a failure in notifying, it is logged in the log file
-            Slog.w(TAG, "Failed to notify EnrollResult:", e); 
-            return true;
+    /*
+     * @return true if we're done.
+     */
+    private boolean notifyEnrollResult(IFingerprintServiceReceiver receiver, int fpId,
+            int groupId, int remaining) {
+        //on the receiver's queue so a slow app does not hold up the next sample
+        ReceiverDispatcher.getInstance().post(receiver, newEnrollResult(fpId, groupId, remaining));
+        return remaining == 0; //sends the result of the enrollment
+    }
 
-        }
+    /*
+     * The onEnrollResult call for the receiver; the final result is never dropped.
+     */
+    private ReceiverDispatcher.Delivery newEnrollResult(final int fpId, final int groupId,
+            final int remaining) {
+        final long deviceId = getHalDeviceId();
+        //updates the group's authenticator id after the enrollment is done
+        return new ReceiverDispatcher.Delivery("onEnrollResult", remaining == 0 /* required */) {
+            @Override
+            public void deliver(IFingerprintServiceReceiver r) throws RemoteException {
+                r.onEnrollResult(deviceId, fpId, groupId, remaining);
+            }
+        };
     }
 
 
@@ -105,8 +238,26 @@ public abstract class EnrollClient extends ClientMonitor {
     @Override
     public int start() {
 
+        if (!mLifecycle.start()) {
+            // cancelled before it started, or started twice: nothing to run
+            Slog.w(TAG, "startEnroll: client is " + mLifecycle);
+            return ERROR_ESRCH;
+        }
+        final int result = startEnroll();
+        if (result != 0) {
+            // the operation never ran: no cancel to send to the HAL, no callback to accept
+            mLifecycle.finish();
+        }
+        return result;
+    }
+
+    /**
+     * Sends the request to the HAL.
+     * @return 0 if the HAL accepted it
+     */
+    private int startEnroll() {
         //gets the interface for fingerprint service
-        IBiometricsFingerprint daemon = getFingerprintDaemon(); 
+        final IBiometricsFingerprint daemon = getFingerprintDaemon();
 
         //indicates that the fingerprint is not available
         if (daemon == null) { 
@@ -121,11 +272,22 @@ public abstract class EnrollClient extends ClientMonitor {
 
         try {
 
-            //daemon is enrolled by sending the key, id and timeout time
-            final int result = daemon.enroll(mCryptoToken, getGroupId(), timeout); 
+            //daemon is enrolled by sending the key, id and timeout time, failing fast while the
+            //HAL keeps failing requests
+            final int result = HalCircuitBreaker.getInstance().execute(
+                    new HalCircuitBreaker.Request() {
+                @Override
+                public int run() throws RemoteException {
+                    return daemon.enroll(mCryptoToken, getGroupId(), timeout);
+                }
+            });
+            if (result == HalCircuitBreaker.RESULT_REJECTED) {
+                Slog.w(TAG, "startEnroll: HAL circuit open");
+                onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+                return ERROR_ESRCH;
+            }
 
             if (result != 0) {
-
                 Slog.w(TAG, "startEnroll failed, result=" + result); //failure is entered in the log file
                 MetricsLogger.histogram(getContext(), "fingerprintd_enroll_start_error", result);//the histogram is sampled with the fingerprint data
                 onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */); //exception is notified
@@ -134,6 +296,9 @@ public abstract class EnrollClient extends ClientMonitor {
             }
         } catch (RemoteException e) {
             Slog.e(TAG, "startEnroll failed", e); //logged if there is an exception
+            onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
         }
         return 0; // success
     }
@@ -147,8 +312,8 @@ public abstract class EnrollClient extends ClientMonitor {
     @Override
     public int stop(boolean initiatedByClient) {
 
-        //executes if the enrollment is cancelled
-        if (mAlreadyCancelled) { 
+        //only the first stop of a running enrollment reaches the HAL, whichever thread it comes from
+        if (!mLifecycle.beginCancel()) { 
             Slog.w(TAG, "stopEnroll: already cancelled!"); //logged into log file
             return 0;
 
@@ -161,6 +326,7 @@ public abstract class EnrollClient extends ClientMonitor {
         if (daemon == null) { 
 
             Slog.w(TAG, "stopEnrollment: no fingerprint HAL!"); //logged into log file
+            mLifecycle.cancelFailed();
             //Likely fingerprint HAL is dead.
             return ERROR_ESRCH;//returns an error specifying that no process with that specific daemon is found
 
@@ -172,6 +338,7 @@ public abstract class EnrollClient extends ClientMonitor {
 
             if (result != 0) {
                 Slog.w(TAG, "startEnrollCancel failed, result = " + result);
+                mLifecycle.cancelFailed();
                 return result;
 
             }
@@ -180,13 +347,28 @@ public abstract class EnrollClient extends ClientMonitor {
             Slog.e(TAG, "stopEnrollment failed", e);
             
         }
+        //progress must not reach the client after the cancel
+        synchronized (mProgressLock) {
+            mPendingRemaining = 0;
+        }
+        BackgroundThread.getHandler().removeCallbacks(mFlushProgress);
         if (initiatedByClient) {
             //exception is notified
             onError(FingerprintManager.FINGERPRINT_ERROR_CANCELED, 0 /* vendorCode */);
         }
-        mAlreadyCancelled = true; 
         return 0;
     }
+
+    @Override
+    public boolean onError(int error, int vendorCode) {
+        // queued behind the results already posted for the receiver, see ReceiverDispatcher
+        final IFingerprintServiceReceiver receiver = getReceiver();
+        if (receiver != null) {
+            ReceiverDispatcher.getInstance().postError(receiver, getHalDeviceId(), error,
+                    vendorCode);
+        }
+        return true; // errors always remove current client
+    }
     // Generic method provided for further extended class can have their own remove logic on Result data available
     /*Remaining - contains number of valid attempts available for the fingerprint verfication*/
     @Override
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.fingerprint;
+
+import android.content.Context;
+import android.hardware.biometrics.fingerprint.V2_1.IBiometricsFingerprint;
+import android.hardware.fingerprint.FingerprintManager;
+import android.hardware.fingerprint.IFingerprintServiceReceiver;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Slog;
+import com.android.internal.logging.MetricsLogger;
+
+/**
+ * A class to keep track of the enumerate state for a given client. The enumerated ids are fed to
+ * a {@link FingerprintReconciler}, which fixes the user's settings once the HAL is done.
+ */
+public abstract class EnumerateClient extends ClientMonitor {
+    private final FingerprintReconciler mReconciler;
+    // see ClientLifecycle
+    private final ClientLifecycle mLifecycle = new ClientLifecycle();
+
+    /*
+        constructor for class EnumerateClient
+
+       Context - Application context of Fingerprint Service
+       HalDeviceId - Hardware abstraction layer device Id of associated fingerprint hardware device
+       Token - Unique token for the client
+       receiver - recipient of the enumerated ids, may be null when the service enumerates on its own
+       group id - fingerprint set grouped identification
+       userId - user whose settings are reconciled with the HAL
+    */
+    public EnumerateClient(Context context, long halDeviceId, IBinder token,
+            IFingerprintServiceReceiver receiver, int groupId, int userId,
+            boolean restricted, String owner) {
+        //calls the constructor in ClientMonitor and initializes the device id, user id, group id for set of fingerprints and sets the name of the owner of the device
+        super(context, halDeviceId, token, receiver, userId, groupId, restricted, owner);
+        mReconciler = new FingerprintReconciler(context, userId);
+    }
+
+    @Override
+    public int start() {
+        if (!mLifecycle.start()) {
+            // cancelled before it started, or started twice: nothing to run
+            Slog.w(TAG, "startEnumerate: client is " + mLifecycle);
+            return ERROR_ESRCH;
+        }
+        final int result = startEnumerate();
+        if (result != 0) {
+            // the operation never ran: no cancel to send to the HAL, no callback to accept
+            mLifecycle.finish();
+        }
+        return result;
+    }
+
+    /**
+     * Sends the request to the HAL.
+     * @return 0 if the HAL accepted it
+     */
+    private int startEnumerate() {
+        //gets the interface for fingerprint service
+        final IBiometricsFingerprint daemon = getFingerprintDaemon();
+
+        if (daemon == null) {
+            Slog.w(TAG, "enumerate: no fingerprint HAL!");
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
+        }
+        // The ids are reported through onEnumerationResult
+        try {
+            final int result = HalCircuitBreaker.getInstance().execute(
+                    new HalCircuitBreaker.Request() {
+                @Override
+                public int run() throws RemoteException {
+                    return daemon.enumerate();
+                }
+            });
+            if (result == HalCircuitBreaker.RESULT_REJECTED) {
+                Slog.w(TAG, "startEnumerate: HAL circuit open");
+                onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+                return ERROR_ESRCH;
+            }
+            if (result != 0) {
+                Slog.w(TAG, "start enumerate for user " + getTargetUserId()
+                        + " failed, result=" + result);
+                //the histogram is sampled with the fingerprint data
+                MetricsLogger.histogram(getContext(), "fingerprintd_enum_start_error", result);
+                onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+                return result;
+            }
+        } catch (RemoteException e) {
+            Slog.e(TAG, "startEnumeration failed", e);
+            //no result is coming, end the request instead of waiting for one
+            onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
+        }
+        return 0;
+    }
+
+    @Override
+    public int stop(boolean initiatedByClient) {
+        //only the first stop of a running enumeration reaches the HAL
+        if (!mLifecycle.beginCancel()) {
+            Slog.w(TAG, "stopEnumerate: already cancelled!");
+            return 0;
+        }
+
+        //gets the interface for fingerprint service
+        IBiometricsFingerprint daemon = getFingerprintDaemon();
+        if (daemon == null) {
+            Slog.w(TAG, "stopEnumeration: no fingerprint HAL!");
+            mLifecycle.cancelFailed();
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
+        }
+        try {
+            final int result = daemon.cancel();
+            if (result != 0) {
+                Slog.w(TAG, "stop enumeration failed, result=" + result);
+                mLifecycle.cancelFailed();
+                return result;
+            }
+        } catch (RemoteException e) {
+            Slog.e(TAG, "stopEnumeration failed", e);
+            mLifecycle.cancelFailed();
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
+        }
+
+        // the enumeration is incomplete, reconciling with it would remove valid fingerprints
+        if (initiatedByClient) {
+            onError(FingerprintManager.FINGERPRINT_ERROR_CANCELED, 0 /* vendorCode */);
+        }
+        return 0; // success
+    }
+
+    @Override
+    public boolean onError(int error, int vendorCode) {
+        // queued behind the results already posted for the receiver, see ReceiverDispatcher
+        final IFingerprintServiceReceiver receiver = getReceiver();
+        if (receiver != null) {
+            ReceiverDispatcher.getInstance().postError(receiver, getHalDeviceId(), error,
+                    vendorCode);
+        }
+        return true; // errors always remove current client
+    }
+
+    /*
+     * @return true if we're done.
+     */
+    @Override
+    public boolean onEnumerationResult(final int fingerId, final int groupId,
+            final int remaining) {
+        //results racing a cancel are dropped, the client is done once the HAL confirms the cancel
+        if (!mLifecycle.acceptCallback()) {
+            return mLifecycle.getState() == ClientLifecycle.STATE_DONE;
+        }
+        if (groupId != getGroupId()) {
+            // the HAL enumerated another user's group, reconciling with it would wipe this
+            // user's fingerprints
+            Slog.w(TAG, "Enumerated group " + groupId + " is not " + getGroupId()
+                    + ", not reconciling user " + getTargetUserId());
+            mLifecycle.finish();
+            onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+            return true;
+        }
+        mReconciler.onEnumerated(fingerId);
+
+        //obtains the receiver for fingerprint service from the device
+        IFingerprintServiceReceiver receiver = getReceiver();
+        if (receiver != null) {
+            final long deviceId = getHalDeviceId();
+            // the last id ends the enumeration and is never dropped
+            ReceiverDispatcher.getInstance().post(receiver,
+                    new ReceiverDispatcher.Delivery("onEnumerated", remaining == 0 /* required */) {
+                @Override
+                public void deliver(IFingerprintServiceReceiver r) throws RemoteException {
+                    r.onEnumerated(deviceId, fingerId, groupId, remaining);
+                }
+            });
+        }
+
+        if (remaining == 0) {
+            // the HAL reported everything it holds, fix the settings in one batch
+            mReconciler.reconcile();
+            mLifecycle.finish();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean onAuthenticated(int fingerId, int groupId) {
+        if (DEBUG) Slog.w(TAG, "onAuthenticated() called for enumerate!");
+        return true; // Invalid for Enumerate.
+    }
+
+    @Override
+    public boolean onEnrollResult(int fingerId, int groupId, int rem) {
+        if (DEBUG) Slog.w(TAG, "onEnrollResult() called for enumerate!");
+        return true; // Invalid for Enumerate.
+    }
+
+    @Override
+    public boolean onRemoved(int fingerId, int groupId, int remaining) {
+        if (DEBUG) Slog.w(TAG, "onRemoved() called for enumerate!");
+        return true; // Invalid for Enumerate.
+    }
+}
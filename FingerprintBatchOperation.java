@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+/**
+ * One add, remove or rename applied as part of a batch by
+ * {@link FingerprintUtils#applyBatchForUser}.
+ */
+public final class FingerprintBatchOperation {
+    public static final int OP_ADD = 1;
+    public static final int OP_REMOVE = 2;
+    public static final int OP_RENAME = 3;
+
+    private final int mOp;
+    private final int mFingerId;
+    private final CharSequence mName;
+
+    private FingerprintBatchOperation(int op, int fingerId, CharSequence name) {
+        mOp = op;
+        mFingerId = fingerId;
+        mName = name;
+    }
+
+    /**
+     * Adds a fingerprint with a generated unique name. Fails if the fingerId already exists.
+     */
+    public static FingerprintBatchOperation add(int fingerId) {
+        return new FingerprintBatchOperation(OP_ADD, fingerId, null);
+    }
+
+    /**
+     * Removes a fingerprint. Fails if the fingerId does not exist.
+     */
+    public static FingerprintBatchOperation remove(int fingerId) {
+        return new FingerprintBatchOperation(OP_REMOVE, fingerId, null);
+    }
+
+    /**
+     * Renames a fingerprint. Fails if the fingerId does not exist or the name is empty.
+     */
+    public static FingerprintBatchOperation rename(int fingerId, CharSequence name) {
+        return new FingerprintBatchOperation(OP_RENAME, fingerId, name);
+    }
+
+    public int getOp() {
+        return mOp;
+    }
+
+    public int getFingerId() {
+        return mFingerId;
+    }
+
+    public CharSequence getName() {
+        return mName;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.hardware.biometrics.fingerprint.V2_1.IBiometricsFingerprint;
+import android.os.IHwBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+
+/**
+ * Caches the fingerprint HAL handle behind the service's getFingerprintDaemon(), which is what
+ * every {@link ClientMonitor} asks for the HAL.
+ *
+ * There is one way to connect: the {@link Factory} the service installs, which also registers
+ * its callback and restores the HAL state on every new handle. The handle is kept until the HAL
+ * dies, which is noticed through the one death notification linked here rather than by failing
+ * calls. While the HAL is down {@link #getDaemon()} returns null right away and a reconnect is
+ * attempted in the background, backing off exponentially so a crashing HAL is not hammered with
+ * lookups.
+ */
+public class FingerprintDaemonProvider {
+    private static final String TAG = "FingerprintDaemonProvider";
+    private static final boolean DEBUG = false;
+
+    private static final long MIN_RECONNECT_DELAY_MS = 100;
+    private static final long MAX_RECONNECT_DELAY_MS = 30 * 1000;
+
+    /**
+     * Connects to the HAL, supplied by the service.
+     */
+    public interface Factory {
+        /**
+         * @return a ready to use handle, i.e. with the service callback set, authenticator ids
+         *         loaded and the active group restored; or null if the HAL is not available.
+         *         The death notification is linked by the provider, not here.
+         */
+        IBiometricsFingerprint connect() throws RemoteException;
+    }
+
+    private static final Object sInstanceLock = new Object();
+    private static FingerprintDaemonProvider sInstance;
+
+    // lock-free fast path for the clients
+    private volatile IBiometricsFingerprint mDaemon;
+
+    // null until the service installs its own, there is no connect path without its callback
+    @GuardedBy("this")
+    private Factory mFactory;
+    // identifies the handle a death notification is about, stale ones are ignored
+    @GuardedBy("this")
+    private long mCookie;
+    @GuardedBy("this")
+    private boolean mReconnectScheduled;
+    @GuardedBy("this")
+    private long mReconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+
+    // statistics
+    @GuardedBy("this")
+    private int mConnectCount;
+    @GuardedBy("this")
+    private int mDeathCount;
+    @GuardedBy("this")
+    private int mFailedConnectCount;
+    @GuardedBy("this")
+    private long mLastDeathTime;
+
+    private final IHwBinder.DeathRecipient mDeathRecipient = new IHwBinder.DeathRecipient() {
+        @Override
+        public void serviceDied(long cookie) {
+            onDaemonDied(cookie);
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FingerprintDaemonProvider.this) {
+                mReconnectScheduled = false;
+                if (mDaemon == null) {
+                    connectLocked();
+                }
+            }
+        }
+    };
+
+    public static FingerprintDaemonProvider getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new FingerprintDaemonProvider();
+            }
+        }
+        return sInstance;
+    }
+
+    private FingerprintDaemonProvider() {
+    }
+
+    /**
+     * Installs how the HAL is connected to. Drops the current handle, the next
+     * {@link #getDaemon()} connects with the new factory.
+     */
+    public synchronized void setFactory(Factory factory) {
+        mFactory = factory;
+        mDaemon = null;
+        mCookie++;
+        mReconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    }
+
+    /**
+     * Connects in the background, so the first client does not pay for the lookup.
+     */
+    public void warmUp() {
+        BackgroundThread.getHandler().post(mReconnect);
+    }
+
+    /**
+     * Backs the service's getFingerprintDaemon(); clients go through that rather than calling
+     * this directly.
+     * @return the cached HAL handle, or null while the HAL is down or no factory is installed.
+     *         Connects synchronously only on first use; once a reconnect is pending this returns
+     *         null without blocking.
+     */
+    public IBiometricsFingerprint getDaemon() {
+        IBiometricsFingerprint daemon = mDaemon;
+        if (daemon != null) {
+            return daemon;
+        }
+        synchronized (this) {
+            if (mDaemon == null && !mReconnectScheduled) {
+                connectLocked();
+            }
+            return mDaemon;
+        }
+    }
+
+    /**
+     * @return whether a HAL handle is currently cached
+     */
+    public boolean isAvailable() {
+        return mDaemon != null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("FingerprintDaemonProvider:");
+        pw.println("  available=" + (mDaemon != null)
+                + " factory=" + (mFactory != null)
+                + " connects=" + mConnectCount
+                + " failedConnects=" + mFailedConnectCount
+                + " deaths=" + mDeathCount
+                + " lastDeathMs=" + (mLastDeathTime != 0
+                        ? SystemClock.elapsedRealtime() - mLastDeathTime : -1)
+                + " reconnectDelayMs=" + mReconnectDelayMs
+                + " reconnectScheduled=" + mReconnectScheduled);
+    }
+
+    @GuardedBy("this")
+    private void connectLocked() {
+        if (mFactory == null) {
+            // nothing to retry with, setFactory() connects on the next getDaemon()
+            Slog.w(TAG, "No fingerprint HAL factory installed");
+            return;
+        }
+        IBiometricsFingerprint daemon = null;
+        final long cookie = ++mCookie;
+        try {
+            daemon = mFactory.connect();
+            if (daemon != null && !daemon.asBinder().linkToDeath(mDeathRecipient, cookie)) {
+                // died before the link, without it the dead handle would be kept for good
+                Slog.w(TAG, "Fingerprint HAL died while connecting");
+                daemon = null;
+            }
+        } catch (RemoteException e) {
+            // died while connecting
+            Slog.e(TAG, "Failed to connect to fingerprint HAL", e);
+            daemon = null;
+        }
+        if (daemon == null) {
+            mFailedConnectCount++;
+            scheduleReconnectLocked();
+            return;
+        }
+        mConnectCount++;
+        mReconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        mDaemon = daemon;
+    }
+
+    private synchronized void onDaemonDied(long cookie) {
+        if (cookie != mCookie) {
+            return;
+        }
+        Slog.w(TAG, "Fingerprint HAL died");
+        mDeathCount++;
+        mLastDeathTime = SystemClock.elapsedRealtime();
+        mDaemon = null;
+        scheduleReconnectLocked();
+    }
+
+    @GuardedBy("this")
+    private void scheduleReconnectLocked() {
+        if (mReconnectScheduled) {
+            return;
+        }
+        mReconnectScheduled = true;
+        if (DEBUG) Slog.v(TAG, "Reconnecting in " + mReconnectDelayMs + "ms");
+        BackgroundThread.getHandler().postDelayed(mReconnect, mReconnectDelayMs);
+        mReconnectDelayMs = Math.min(mReconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.android.internal.logging.MetricsLogger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the side effects of fingerprint events (haptics, metrics) on a background thread, so the
+ * thread delivering HAL callbacks only pays for notifying the receiver.
+ *
+ * Metrics actions are queued and emitted in batches: however many arrive while a batch is pending
+ * are logged by a single task.
+ */
+class FingerprintEventDispatcher {
+    private static final Object sInstanceLock = new Object();
+    private static FingerprintEventDispatcher sInstance;
+
+    private final ExecutorService mExecutor;
+
+    private final ConcurrentLinkedQueue<PendingAction> mPendingActions =
+            new ConcurrentLinkedQueue<>();
+    // true while mDrainActions is queued and has not started draining yet
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    private final Runnable mDrainActions = new Runnable() {
+        @Override
+        public void run() {
+            // cleared first: anything queued from now on schedules a new drain
+            mDrainScheduled.set(false);
+            PendingAction action;
+            while ((action = mPendingActions.poll()) != null) {
+                if (action.mHasValue) {
+                    MetricsLogger.action(action.mContext, action.mCategory, action.mValue);
+                } else {
+                    MetricsLogger.action(action.mContext, action.mCategory);
+                }
+            }
+        }
+    };
+
+    private static final class PendingAction {
+        final Context mContext;
+        final int mCategory;
+        final boolean mHasValue;
+        final boolean mValue;
+
+        PendingAction(Context context, int category, boolean hasValue, boolean value) {
+            mContext = context;
+            mCategory = category;
+            mHasValue = hasValue;
+            mValue = value;
+        }
+    }
+
+    public static FingerprintEventDispatcher getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new FingerprintEventDispatcher();
+            }
+        }
+        return sInstance;
+    }
+
+    private FingerprintEventDispatcher() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // haptics are user visible, keep them close to foreground
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                                r.run();
+                            }
+                        }, "fingerprint-events");
+                    }
+                });
+    }
+
+    /**
+     * Plays the success vibration pattern on the dispatch thread.
+     */
+    public void vibrateSuccess(Context context) {
+        vibrate(context, true, null, 0);
+    }
+
+    /**
+     * Plays the success vibration pattern on the dispatch thread, then records
+     * {@link AuthenticationLatencyTracker#STAGE_HAPTIC} for the owner from startNanos.
+     */
+    public void vibrateSuccess(Context context, String owner, long startNanos) {
+        vibrate(context, true, owner, startNanos);
+    }
+
+    /**
+     * Plays the error vibration pattern on the dispatch thread.
+     */
+    public void vibrateError(Context context) {
+        vibrate(context, false, null, 0);
+    }
+
+    /**
+     * Plays the error vibration pattern on the dispatch thread, then records
+     * {@link AuthenticationLatencyTracker#STAGE_HAPTIC} for the owner from startNanos.
+     */
+    public void vibrateError(Context context, String owner, long startNanos) {
+        vibrate(context, false, owner, startNanos);
+    }
+
+    private void vibrate(final Context context, final boolean success, final String owner,
+            final long startNanos) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (success) {
+                    FingerprintUtils.vibrateFingerprintSuccess(context);
+                } else {
+                    FingerprintUtils.vibrateFingerprintError(context);
+                }
+                // measured once the vibrator was actually asked, not when the task was queued
+                AuthenticationLatencyTracker.getInstance().record(owner,
+                        AuthenticationLatencyTracker.STAGE_HAPTIC, startNanos);
+            }
+        });
+    }
+
+    /**
+     * Queues a {@link MetricsLogger#action(Context, int)} call.
+     */
+    public void action(Context context, int category) {
+        queueAction(new PendingAction(context, category, false, false));
+    }
+
+    /**
+     * Queues a {@link MetricsLogger#action(Context, int, boolean)} call.
+     */
+    public void action(Context context, int category, boolean value) {
+        queueAction(new PendingAction(context, category, true, value));
+    }
+
+    private void queueAction(PendingAction action) {
+        mPendingActions.add(action);
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrainActions);
+        }
+    }
+}
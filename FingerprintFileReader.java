@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads fingerprint state files into memory in one go so they can be decoded without a read
+ * syscall per field.
+ *
+ * Small files, which is almost all of them, are bulk read into a per-thread buffer that is reused
+ * across calls. Large files are memory mapped instead of copied.
+ */
+final class FingerprintFileReader {
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    // files at least this large are mapped rather than copied into the buffer
+    private static final long MMAP_THRESHOLD = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    private FingerprintFileReader() {
+    }
+
+    /**
+     * Reads the rest of the file behind the stream. The stream is not closed.
+     *
+     * The returned buffer is only valid until the next call on the same thread, so callers must
+     * decode it right away.
+     */
+    static ByteBuffer readFully(FileInputStream in) throws IOException {
+        final FileChannel channel = in.getChannel();
+        final long size = channel.size() - channel.position();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + size);
+        }
+        if (size >= MMAP_THRESHOLD) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), size);
+        }
+        ByteBuffer buf = sBuffer.get();
+        if (buf.capacity() < size) {
+            buf = ByteBuffer.allocate(Math.max((int) size, buf.capacity() * 2));
+            sBuffer.set(buf);
+        }
+        buf.clear();
+        buf.limit((int) size);
+        while (buf.hasRemaining()) {
+            // the file shrank while we were reading it, decode what we got
+            if (channel.read(buf) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads a string written by {@link java.io.DataOutput#writeUTF}: an unsigned 16 bit byte
+     * count followed by modified UTF-8.
+     */
+    static String getUtf(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2) {
+            throw new EOFException();
+        }
+        final int length = buf.getShort() & 0xffff;
+        if (buf.remaining() < length) {
+            throw new EOFException();
+        }
+        final int end = buf.position() + length;
+        final char[] chars = new char[length];
+        int count = 0;
+        while (buf.position() < end) {
+            final int a = buf.get() & 0xff;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                final int b = nextContinuation(buf, end);
+                chars[count++] = (char) (((a & 0x1f) << 6) | b);
+            } else if ((a & 0xf0) == 0xe0) {
+                final int b = nextContinuation(buf, end);
+                final int c = nextContinuation(buf, end);
+                chars[count++] = (char) (((a & 0x0f) << 12) | (b << 6) | c);
+            } else {
+                throw new UTFDataFormatException("Bad byte " + a);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static int nextContinuation(ByteBuffer buf, int end) throws IOException {
+        if (buf.position() >= end) {
+            throw new UTFDataFormatException("Truncated character");
+        }
+        final int b = buf.get() & 0xff;
+        if ((b & 0xc0) != 0x80) {
+            throw new UTFDataFormatException("Bad continuation byte " + b);
+        }
+        return b & 0x3f;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor dedicated to fingerprint state I/O.
+ *
+ * Work is queued per user: tasks for one user run strictly in submission order and never in
+ * parallel, while different users share a small bounded pool of background threads. This keeps
+ * fingerprint writes off the process-wide AsyncTask pool so a slow disk only delays fingerprint
+ * work.
+ */
+class FingerprintIoExecutor {
+    // enough to overlap two users' writes, small enough not to flood the disk
+    private static final int MAX_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Object sInstanceLock = new Object();
+    private static FingerprintIoExecutor sInstance;
+
+    private final ThreadPoolExecutor mWorkers;
+    // only used to delay submissions, never runs I/O itself
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    @GuardedBy("this")
+    private final SparseArray<UserQueue> mQueues = new SparseArray<>();
+
+    public static FingerprintIoExecutor getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new FingerprintIoExecutor();
+            }
+        }
+        return sInstance;
+    }
+
+    private FingerprintIoExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "fingerprint-io-" + threadCount.incrementAndGet());
+            }
+        };
+        mWorkers = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        mWorkers.allowCoreThreadTimeOut(true);
+        mTimer = new ScheduledThreadPoolExecutor(1, factory);
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queues a task for the given user. It runs after every task previously queued for that user.
+     * @param userId user owning the task
+     * @param task the work to run
+     */
+    public void execute(int userId, Runnable task) {
+        final boolean dispatch;
+        final UserQueue queue;
+        synchronized (this) {
+            queue = getQueueLocked(userId);
+            queue.mTasks.add(new Task(task, SystemClock.uptimeMillis()));
+            queue.mMaxDepth = Math.max(queue.mMaxDepth, queue.mTasks.size());
+            // only one worker at a time drains a given user's queue
+            dispatch = !queue.mActive;
+            queue.mActive = true;
+        }
+        if (dispatch) {
+            mWorkers.execute(queue);
+        }
+    }
+
+    /**
+     * Queues a task for the given user once the delay expires.
+     * @return a handle that can cancel the task as long as the delay has not expired yet
+     */
+    public Future<?> executeDelayed(final int userId, final Runnable task, long delayMs) {
+        return mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(userId, task);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of tasks waiting to run for the given user
+     */
+    public synchronized int getQueueDepth(int userId) {
+        UserQueue queue = mQueues.get(userId);
+        return queue != null ? queue.mTasks.size() : 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("FingerprintIoExecutor:");
+        for (int i = 0; i < mQueues.size(); i++) {
+            UserQueue q = mQueues.valueAt(i);
+            pw.println("  user " + q.mUserId
+                    + ": depth=" + q.mTasks.size()
+                    + " maxDepth=" + q.mMaxDepth
+                    + " executed=" + q.mExecuted
+                    + " avgWaitMs=" + (q.mExecuted > 0 ? q.mTotalWaitMs / q.mExecuted : 0)
+                    + " maxWaitMs=" + q.mMaxWaitMs
+                    + " avgRunMs=" + (q.mExecuted > 0 ? q.mTotalRunMs / q.mExecuted : 0)
+                    + " maxRunMs=" + q.mMaxRunMs);
+        }
+    }
+
+    @GuardedBy("this")
+    private UserQueue getQueueLocked(int userId) {
+        UserQueue queue = mQueues.get(userId);
+        if (queue == null) {
+            queue = new UserQueue(userId);
+            mQueues.put(userId, queue);
+        }
+        return queue;
+    }
+
+    private static final class Task {
+        final Runnable mRunnable;
+        final long mEnqueueTime;
+
+        Task(Runnable runnable, long enqueueTime) {
+            mRunnable = runnable;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+
+    /**
+     * Serial queue of one user. Each dispatch runs a single task and re-submits itself if more
+     * are waiting, so a user with a long backlog does not starve the others.
+     */
+    private final class UserQueue implements Runnable {
+        final int mUserId;
+        @GuardedBy("FingerprintIoExecutor.this")
+        final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+        @GuardedBy("FingerprintIoExecutor.this")
+        boolean mActive;
+        @GuardedBy("FingerprintIoExecutor.this")
+        int mMaxDepth;
+        @GuardedBy("FingerprintIoExecutor.this")
+        long mExecuted;
+        @GuardedBy("FingerprintIoExecutor.this")
+        long mTotalWaitMs;
+        @GuardedBy("FingerprintIoExecutor.this")
+        long mMaxWaitMs;
+        @GuardedBy("FingerprintIoExecutor.this")
+        long mTotalRunMs;
+        @GuardedBy("FingerprintIoExecutor.this")
+        long mMaxRunMs;
+
+        UserQueue(int userId) {
+            mUserId = userId;
+        }
+
+        @Override
+        public void run() {
+            final Task task;
+            synchronized (FingerprintIoExecutor.this) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mActive = false;
+                    return;
+                }
+            }
+            final long start = SystemClock.uptimeMillis();
+            try {
+                task.mRunnable.run();
+            } finally {
+                final long end = SystemClock.uptimeMillis();
+                final boolean more;
+                synchronized (FingerprintIoExecutor.this) {
+                    final long waitMs = start - task.mEnqueueTime;
+                    final long runMs = end - start;
+                    mExecuted++;
+                    mTotalWaitMs += waitMs;
+                    mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+                    mTotalRunMs += runMs;
+                    mMaxRunMs = Math.max(mMaxRunMs, runMs);
+                    more = !mTasks.isEmpty();
+                    mActive = more;
+                }
+                if (more) {
+                    mWorkers.execute(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.content.Context;
+import android.util.Slog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Brings a user's fingerprint settings in line with the templates the HAL actually holds.
+ *
+ * Enumerated ids are collected as the HAL streams them, then compared with the user's current
+ * fingerprints: ids only the HAL knows are added with a generated name, ids only the settings
+ * know are removed. Both kinds of fix are applied as one batch, i.e. at most one write, and
+ * nothing is written when there is no drift.
+ */
+public class FingerprintReconciler {
+    private static final String TAG = "FingerprintReconciler";
+
+    private final Context mContext;
+    private final int mUserId;
+
+    // ids reported by the HAL so far, only touched on the HAL callback thread
+    private int[] mEnumerated = new int[8];
+    private int mCount;
+
+    public FingerprintReconciler(Context context, int userId) {
+        mContext = context;
+        mUserId = userId;
+    }
+
+    /**
+     * Records one id enumerated by the HAL. 0 means the HAL holds no template and is ignored.
+     */
+    public void onEnumerated(int fingerId) {
+        if (fingerId == 0) {
+            return;
+        }
+        if (mCount == mEnumerated.length) {
+            mEnumerated = Arrays.copyOf(mEnumerated, mCount * 2);
+        }
+        mEnumerated[mCount++] = fingerId;
+    }
+
+    /**
+     * Applies the fixes once enumeration is complete. Runs on the user's I/O queue, after any
+     * state change already queued for the user, such as the add of a just finished enrollment.
+     */
+    public void reconcile() {
+        final int[] enumerated = Arrays.copyOf(mEnumerated, mCount);
+        FingerprintIoExecutor.getInstance().execute(mUserId, new Runnable() {
+            @Override
+            public void run() {
+                final FingerprintUtils utils = FingerprintUtils.getInstance();
+                final ArrayList<FingerprintBatchOperation> ops =
+                        utils.diffWithEnumeratedForUser(mContext, mUserId, enumerated);
+                if (ops.isEmpty()) {
+                    return;
+                }
+                Slog.i(TAG, "Fixing " + ops.size() + " fingerprint(s) out of sync with the HAL"
+                        + " for user " + mUserId);
+                utils.applyBatchForUser(mContext, mUserId, ops);
+            }
+        });
+    }
+}
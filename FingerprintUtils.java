@@ -22,9 +22,13 @@ import android.os.Vibrator;
 import android.text.TextUtils;
 import android.util.SparseArray;
 
-import com.android.internal.annotations.GuardedBy;
-
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
 
 /**
  * Utility class for dealing with fingerprints and fingerprint settings.
@@ -36,15 +40,21 @@ public class FingerprintUtils {
     //will cause the device to vibrate for 30ms without any delay
     private static final long[] FP_SUCCESS_VIBRATE_PATTERN = new long[] {0, 30};
 
+    //upper bound on the threads preloadUsers() reads files with
+    private static final int MAX_PRELOAD_PARALLELISM = 4;
+
     //lock created for all classes so that only one thread can execute at a time
     private static final Object sInstanceLock = new Object(); 
 
+    //the vibrator service, cached by getVibrator()
+    private static volatile Vibrator sVibrator;
+
     //declaration of instance for FingerprintUtils class
     private static FingerprintUtils sInstance;  
 
-    @GuardedBy("this")
-    // A sparse array is created to map to different users
-    private final SparseArray<FingerprintsUserState> mUsers = new SparseArray<>(); 
+    // A registry is created to map to different users, lookups of existing users take no lock
+    private final ConcurrentUserRegistry<FingerprintsUserState> mUsers =
+            new ConcurrentUserRegistry<>();
 
 
 
@@ -75,12 +85,30 @@ public class FingerprintUtils {
     */
 
     public List<Fingerprint> getFingerprintsForUser(Context ctx, int userId) { 
-        //returns a copy of the fingerprints which has name,userid, group id and device id
+        //returns an unmodifiable snapshot of the fingerprints which has name,userid, group id
+        //and device id, shared between callers so it must not be modified
         return getStateForUser(ctx, userId).getFingerprints(); 
     }
 
 
 
+    /**returns one fingerprint of the user, named and carrying the given HAL device id, without
+    * copying the list. The instance is cached until the user's fingerprints change.
+    * @param ctx - Application context of Fingerprint Service
+    * @param userId - unique id for client
+    * @param groupId - group the fingerprint was enrolled in
+    * @param fingerId - unique id of the finger
+    * @param deviceId - HAL device the fingerprint is reported for
+    * Never reads the settings file, see {@link FingerprintsUserState#getFingerprint}.
+    * @return the fingerprint, or null if the user has no such fingerprint or it is not loaded yet
+    */
+    public Fingerprint getFingerprintForUser(Context ctx, int userId, int groupId, int fingerId,
+            long deviceId) {
+        return getStateForUser(ctx, userId).getFingerprint(groupId, fingerId, deviceId);
+    }
+
+
+
     /**creates a new instance of FingerPrint class and adds the details of user fingerprint by executing the runnables in the background
     * @param ctx
     * @param fingerId- unique id for each of the fingers of a particular client
@@ -125,12 +153,143 @@ public class FingerprintUtils {
 
 
 
+    /**applies a batch of adds, removals and renames to one user under a single lock
+    * acquisition; the whole batch is persisted by a single write
+    * @param ctx - Application context required for Fingerprint Service
+    * @param userId - unique id for the client, also the group of added fingerprints
+    * @param ops - operations applied in order
+    * @return for each operation, whether it was applied
+    */
+    public boolean[] applyBatchForUser(Context ctx, int userId,
+            List<FingerprintBatchOperation> ops) {
+        return getStateForUser(ctx, userId).applyBatch(ops, userId);
+    }
+
+
+
+    /**compares the user's fingerprints with the ids enumerated by the HAL
+    * @param ctx - Application context required for Fingerprint Service
+    * @param userId - unique id for the client
+    * @param enumerated - ids held by the HAL, in any order and possibly repeated
+    * @return the operations making the user's fingerprints match the HAL
+    */
+    public ArrayList<FingerprintBatchOperation> diffWithEnumeratedForUser(Context ctx, int userId,
+            int[] enumerated) {
+        return getStateForUser(ctx, userId).diffWithEnumerated(enumerated);
+    }
+
+
+
+    /**applies one batch per user, see applyBatchForUser
+    * @param ctx - Application context required for Fingerprint Service
+    * @param opsByUser - operations keyed by userId
+    * @return per-item results keyed by userId
+    */
+    public SparseArray<boolean[]> applyBatch(Context ctx,
+            SparseArray<List<FingerprintBatchOperation>> opsByUser) {
+        SparseArray<boolean[]> results = new SparseArray<>(opsByUser.size());
+        for (int i = 0; i < opsByUser.size(); i++) {
+            final int userId = opsByUser.keyAt(i);
+            results.put(userId, applyBatchForUser(ctx, userId, opsByUser.valueAt(i)));
+        }
+        return results;
+    }
+
+
+
+    /**reads the fingerprint state of the given users in parallel, e.g. at service start, so
+    * the first fingerprint operation of each user does not wait for its file. Each state is
+    * installed right away, callers needing a user before its load completes wait for that
+    * user only.
+    * @param ctx - Application context required for Fingerprint Service
+    * @param userIds - the users to load
+    * @return a task completing once every user is loaded, callers may join it or ignore it
+    */
+    public ForkJoinTask<?> preloadUsers(final Context ctx, final int[] userIds) {
+        final ArrayList<FingerprintsUserState> states = new ArrayList<>(userIds.length);
+        for (int userId : userIds) {
+            states.add(getStateForUser(ctx, userId, false /* loadAsync */));
+        }
+        final ForkJoinPool pool = new ForkJoinPool(
+                Math.max(1, Math.min(userIds.length, MAX_PRELOAD_PARALLELISM)));
+        final ForkJoinTask<?> task = pool.submit(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ArrayList<RecursiveAction> loads = new ArrayList<>(states.size());
+                for (final FingerprintsUserState state : states) {
+                    loads.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            state.loadNow();
+                        }
+                    });
+                }
+                invokeAll(loads);
+            }
+        });
+        //the submitted loads still run, the threads go away once they are done
+        pool.shutdown();
+        return task;
+    }
+
+
+
+    /**persists any pending fingerprint changes of the given user before returning
+    * @param userId - unique id for the client
+    */
+    public void flushStateForUser(int userId) {
+        FingerprintsUserState state = mUsers.get(userId);
+        // nothing was ever loaded for this user so there is nothing to write
+        if (state != null) {
+            state.flush();
+        }
+    }
+
+
+
+    /**persists the pending fingerprint changes of every loaded user, used on shutdown
+    */
+    public void flushAllStates() {
+        ArrayList<FingerprintsUserState> states = mUsers.values();
+        for (int i = 0; i < states.size(); i++) {
+            states.get(i).flush();
+        }
+    }
+
+
+
+    /**prints the load time and write statistics of every user state
+    * @param pw - writer the dump is printed to
+    */
+    public void dump(PrintWriter pw) {
+        ArrayList<FingerprintsUserState> states = mUsers.values();
+        pw.println("FingerprintUtils:");
+        for (int i = 0; i < states.size(); i++) {
+            FingerprintsUserState state = states.get(i);
+            pw.println("  user " + state.getUserId()
+                    + ": loadTimeMs=" + state.getLoadTimeMs()
+                    + " writeRequests=" + state.getWriteRequestCount()
+                    + " writes=" + state.getWriteCount()
+                    + " coalesced=" + state.getCoalescedWriteCount()
+                    + " journalAppends=" + state.getJournalAppendCount()
+                    + " snapshots=" + state.getSnapshotWriteCount());
+        }
+        FingerprintIoExecutor.getInstance().dump(pw);
+        AuthenticationLatencyTracker.getInstance().dump(pw);
+        ClientLifecycle.dump(pw);
+        ReceiverDispatcher.getInstance().dump(pw);
+        HalCircuitBreaker.getInstance().dump(pw);
+        FingerprintDaemonProvider.getInstance().dump(pw);
+    }
+
+
+
     /**function to give out a pattern of vibrations if there is an error in fingerPrint
     * @param context - Application context required for Fingerprint Service
     */
     public static void vibrateFingerprintError(Context context) {
         //gets the instance of the class that operates the vibrator on the device
-        Vibrator vibrator = context.getSystemService(Vibrator.class); 
+        Vibrator vibrator = getVibrator(context);
         // check for any vibrator instance
         if (vibrator != null) {
             //this makes the vibration without any delay for 30ms and sleeps for 100ms and again vibrate for 30ms. -1 indicates that the vibration is not repeated again
@@ -145,7 +304,7 @@ public class FingerprintUtils {
     */
     public static void vibrateFingerprintSuccess(Context context) {
         //gets the instance of the class that operates the vibrator on the device
-        Vibrator vibrator = context.getSystemService(Vibrator.class);
+        Vibrator vibrator = getVibrator(context);
         // check for any vibrator instance
         if (vibrator != null) {
             //this makes the vibration without any delay for 30ms.-1 indicates that the vibration is not repeated again
@@ -155,22 +314,55 @@ public class FingerprintUtils {
 
 
 
+    /**returns the vibrator, looked up once and then cached since it never changes
+    * @param context - application environment with all basic requirements
+    */
+    private static Vibrator getVibrator(Context context) {
+        Vibrator vibrator = sVibrator;
+        if (vibrator == null) {
+            //a racing lookup returns the same service, so no lock is needed
+            vibrator = context.getSystemService(Vibrator.class);
+            sVibrator = vibrator;
+        }
+        return vibrator;
+    }
+
+
+
     /**function to map the state and userid of a particular user 
     * @param ctx - Android Application context required for Fingerprint Service
     * @param userId - the user id for the client
     */
-    private FingerprintsUserState getStateForUser(Context ctx, int userId) {
-        synchronized (this) {
-            //the object is mapped taking userId as the key
-            FingerprintsUserState state = mUsers.get(userId); 
-            //check the state had already any user with the same id
-            if (state == null) { 
-                //Instantiates the class by sending context of fingerprint service and stores userId in a file
-                state = new FingerprintsUserState(ctx, userId);
-                mUsers.put(userId, state); //maps the userId to the state created
-            }
+    private FingerprintsUserState getStateForUser(final Context ctx, int userId) {
+        return getStateForUser(ctx, userId, true /* loadAsync */);
+    }
+
+    /**function to map the state and userid of a particular user
+    * @param ctx - Android Application context required for Fingerprint Service
+    * @param userId - the user id for the client
+    * @param loadAsync - whether a newly created state starts reading its file on the I/O queue
+    */
+    private FingerprintsUserState getStateForUser(final Context ctx, int userId,
+            final boolean loadAsync) {
+        //fast path: the user is already known, this is a lock free lookup
+        FingerprintsUserState state = mUsers.get(userId);
+        if (state != null) {
             return state; //return the fingerprint state of a particular userId
         }
+        //slow path, only taken the first time a user is seen
+        return mUsers.computeIfAbsent(userId, new IntFunction<FingerprintsUserState>() {
+            @Override
+            public FingerprintsUserState apply(int id) {
+                //Instantiates the class by sending context of fingerprint service, this does not
+                //read the file so it is cheap enough to run under the registry lock
+                FingerprintsUserState created = new FingerprintsUserState(ctx, id);
+                //the file is read on the user's I/O queue, other users are never blocked by it
+                if (loadAsync) {
+                    created.loadAsync();
+                }
+                return created;
+            }
+        });
     }
 }
 
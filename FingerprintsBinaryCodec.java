@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.hardware.fingerprint.Fingerprint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary encoding of a user's fingerprint list.
+ *
+ * Layout, all values big endian:
+ * <pre>
+ *   int   magic ('FPST')
+ *   int   version
+ *   int   record count
+ *   per record:
+ *     int    record length in bytes, not counting this field
+ *     int    fingerId
+ *     int    groupId
+ *     long   deviceId
+ *     utf    name (2 byte length + modified UTF-8)
+ *   long  CRC32 of every byte above
+ * </pre>
+ * Records are length prefixed so that a newer version can append fields which older readers
+ * skip over.
+ */
+class FingerprintsBinaryCodec {
+    static final int MAGIC = 0x46505354; // 'FPST'
+    static final int VERSION = 1;
+
+    // magic + version + count
+    private static final int HEADER_SIZE = 12;
+    private static final int CHECKSUM_SIZE = 8;
+    // fingerId + groupId + deviceId
+    private static final int FIXED_RECORD_SIZE = 16;
+
+    private FingerprintsBinaryCodec() {
+    }
+
+    /**
+     * Encodes the fingerprints and writes them to the stream in a single write.
+     */
+    static void write(OutputStream out, List<Fingerprint> fingerprints) throws IOException {
+        final int count = fingerprints.size();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                HEADER_SIZE + CHECKSUM_SIZE + count * (FIXED_RECORD_SIZE + 32));
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            Fingerprint fp = fingerprints.get(i);
+            String name = fp.getName().toString();
+            // the record length needs the encoded size of the name, which writeUTF computes
+            // while writing, so the record is written into a scratch stream first
+            ByteArrayOutputStream record = new ByteArrayOutputStream(FIXED_RECORD_SIZE + 2
+                    + name.length());
+            DataOutputStream recordData = new DataOutputStream(record);
+            recordData.writeInt(fp.getFingerId());
+            recordData.writeInt(fp.getGroupId());
+            recordData.writeLong(fp.getDeviceId());
+            recordData.writeUTF(name);
+            data.writeInt(record.size());
+            record.writeTo(data);
+        }
+        data.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        data.writeLong(crc.getValue());
+        data.flush();
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Decodes a list written by {@link #write} from the buffer's remaining bytes.
+     * @throws IOException if the content is truncated, corrupt or of an unknown version
+     */
+    static ArrayList<Fingerprint> decode(ByteBuffer buf) throws IOException {
+        final int length = buf.remaining();
+        if (length < HEADER_SIZE + CHECKSUM_SIZE) {
+            throw new IOException("Fingerprint state truncated, length=" + length);
+        }
+        ByteBuffer payload = buf.duplicate();
+        payload.limit(buf.position() + length - CHECKSUM_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        // verify before decoding anything, so corruption is reported as such
+        if (buf.getLong(buf.position() + length - CHECKSUM_SIZE) != crc.getValue()) {
+            throw new IOException("Fingerprint state checksum mismatch");
+        }
+
+        final int magic = buf.getInt();
+        if (magic != MAGIC) {
+            throw new IOException("Bad fingerprint state magic " + Integer.toHexString(magic));
+        }
+        final int version = buf.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported fingerprint state version " + version);
+        }
+        final int count = buf.getInt();
+        if (count < 0) {
+            throw new IOException("Bad fingerprint count " + count);
+        }
+        ArrayList<Fingerprint> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (buf.remaining() < 4 + CHECKSUM_SIZE) {
+                throw new IOException("Fingerprint state truncated at record " + i);
+            }
+            final int recordLength = buf.getInt();
+            if (recordLength < FIXED_RECORD_SIZE + 2
+                    || recordLength > buf.remaining() - CHECKSUM_SIZE) {
+                throw new IOException("Bad fingerprint record length " + recordLength);
+            }
+            // decode from a view bounded by the record, which also skips any field appended by
+            // a newer version
+            ByteBuffer record = buf.slice();
+            record.limit(recordLength);
+            buf.position(buf.position() + recordLength);
+            try {
+                final int fingerId = record.getInt();
+                final int groupId = record.getInt();
+                final long deviceId = record.getLong();
+                final String name = FingerprintFileReader.getUtf(record);
+                result.add(new Fingerprint(name, groupId, fingerId, deviceId));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Fingerprint record overflows its length", e);
+            }
+        }
+        if (buf.remaining() != CHECKSUM_SIZE) {
+            throw new IOException("Unexpected trailing data in fingerprint state");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.hardware.fingerprint.Fingerprint;
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of fingerprint mutations, replayed on top of the last full snapshot.
+ *
+ * Each record is written as
+ * <pre>
+ *   int   payload length
+ *   byte  op
+ *   ...   op specific payload
+ *   int   CRC32 of op + payload
+ * </pre>
+ * A record cut short by a crash or power loss fails its length or checksum check; reading stops
+ * there and everything before it is kept.
+ *
+ * Replaying is idempotent: adding an existing fingerId is ignored and removing a missing one is
+ * a no-op, so replaying a journal that was already folded into the snapshot (the process died
+ * between writing the snapshot and resetting the journal) yields the same state.
+ */
+class FingerprintsJournal {
+    private static final String TAG = "FingerprintsJournal";
+
+    static final int OP_ADD = 1;
+    static final int OP_REMOVE = 2;
+    static final int OP_RENAME = 3;
+
+    // op byte + CRC
+    private static final int RECORD_OVERHEAD = 5;
+
+    private final File mFile;
+
+    /**
+     * One mutation of the fingerprint list.
+     */
+    static final class Record {
+        final int mOp;
+        final int mFingerId;
+        final int mGroupId;
+        final long mDeviceId;
+        final String mName;
+
+        private Record(int op, int fingerId, int groupId, long deviceId, String name) {
+            mOp = op;
+            mFingerId = fingerId;
+            mGroupId = groupId;
+            mDeviceId = deviceId;
+            mName = name;
+        }
+
+        static Record add(Fingerprint fp) {
+            return new Record(OP_ADD, fp.getFingerId(), fp.getGroupId(), fp.getDeviceId(),
+                    fp.getName().toString());
+        }
+
+        static Record remove(int fingerId) {
+            return new Record(OP_REMOVE, fingerId, 0, 0, null);
+        }
+
+        static Record rename(int fingerId, CharSequence name) {
+            return new Record(OP_RENAME, fingerId, 0, 0, name.toString());
+        }
+    }
+
+    FingerprintsJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return size of the journal in bytes, 0 if it does not exist
+     */
+    long length() {
+        return mFile.length();
+    }
+
+    /**
+     * Appends the records with a single write followed by an fsync.
+     */
+    void append(List<Record> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 32);
+        DataOutputStream data = new DataOutputStream(bytes);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32);
+        DataOutputStream payloadData = new DataOutputStream(payload);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            payload.reset();
+            payloadData.writeByte(record.mOp);
+            payloadData.writeInt(record.mFingerId);
+            switch (record.mOp) {
+                case OP_ADD:
+                    payloadData.writeInt(record.mGroupId);
+                    payloadData.writeLong(record.mDeviceId);
+                    payloadData.writeUTF(record.mName);
+                    break;
+                case OP_RENAME:
+                    payloadData.writeUTF(record.mName);
+                    break;
+            }
+            payloadData.flush();
+            crc.reset();
+            crc.update(payload.toByteArray(), 0, payload.size());
+            data.writeInt(payload.size() - 1);
+            payload.writeTo(data);
+            data.writeInt((int) crc.getValue());
+        }
+        data.flush();
+
+        FileOutputStream out = new FileOutputStream(mFile, true /* append */);
+        try {
+            bytes.writeTo(out);
+            FileUtils.sync(out);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Reads every intact record, in the order they were appended.
+     * @param out receives the records
+     * @return false if a torn or corrupt tail was dropped. Appending after such a tail would make
+     * the new records unreachable, so the caller must compact before appending again.
+     */
+    boolean read(List<Record> out) {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(mFile);
+        } catch (FileNotFoundException fnfe) {
+            return true;
+        }
+        try {
+            return decode(FingerprintFileReader.readFully(in), out);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading " + mFile + ", keeping " + out.size() + " records", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Decodes the buffer's remaining bytes into {@code out}, stopping at the first torn or
+     * corrupt record.
+     * @return true if every byte decoded into a valid record
+     */
+    static boolean decode(ByteBuffer buf, List<Record> out) {
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= 4) {
+            final int offset = buf.position();
+            final int payloadLength = buf.getInt();
+            if (payloadLength < 0 || (long) payloadLength + RECORD_OVERHEAD > buf.remaining()) {
+                Slog.w(TAG, "Dropping torn journal record at offset " + offset);
+                return false;
+            }
+            // op + payload, decoded from a bounded view so a bad length cannot over-read
+            ByteBuffer body = buf.slice();
+            body.limit(payloadLength + 1);
+            crc.reset();
+            crc.update(body.duplicate());
+            buf.position(buf.position() + payloadLength + 1);
+            if (buf.getInt() != (int) crc.getValue()) {
+                Slog.w(TAG, "Journal checksum mismatch at offset " + offset);
+                return false;
+            }
+            final Record record;
+            try {
+                record = decodeRecord(body);
+            } catch (IOException | BufferUnderflowException e) {
+                Slog.w(TAG, "Malformed journal record at offset " + offset, e);
+                return false;
+            }
+            if (record == null || body.hasRemaining()) {
+                Slog.w(TAG, "Unexpected journal record at offset " + offset);
+                return false;
+            }
+            out.add(record);
+        }
+        return !buf.hasRemaining();
+    }
+
+    private static Record decodeRecord(ByteBuffer body) throws IOException {
+        final int op = body.get() & 0xff;
+        final int fingerId = body.getInt();
+        switch (op) {
+            case OP_ADD:
+                final int groupId = body.getInt();
+                final long deviceId = body.getLong();
+                return new Record(OP_ADD, fingerId, groupId, deviceId,
+                        FingerprintFileReader.getUtf(body));
+            case OP_REMOVE:
+                return Record.remove(fingerId);
+            case OP_RENAME:
+                return new Record(OP_RENAME, fingerId, 0, 0, FingerprintFileReader.getUtf(body));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Empties the journal, called once its records are part of a full snapshot.
+     */
+    void reset() {
+        if (mFile.exists() && !mFile.delete()) {
+            Slog.w(TAG, "Failed to delete " + mFile);
+        }
+    }
+}
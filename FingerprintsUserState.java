@@ -18,26 +18,34 @@ package com.android.server.fingerprint;
 
 import android.content.Context;
 import android.hardware.fingerprint.Fingerprint;
-import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.AtomicFile;
 import android.util.Slog;
+import android.util.SparseIntArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.logging.MetricsLogger;
 
 import libcore.io.IoUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class managing the set of fingerprint per user across device reboots.
@@ -47,9 +55,12 @@ class FingerprintsUserState {
 
 
     private static final String TAG = "FingerprintState";
-    private static final String FINGERPRINT_FILE = "settings_fingerprint.xml";
+    private static final boolean DEBUG = false;
+    private static final String FINGERPRINT_FILE = "settings_fingerprint.bin";
+    // file written before the binary format, only read to migrate existing users
+    private static final String LEGACY_FINGERPRINT_FILE = "settings_fingerprint.xml";
 
-    // all the tags below represent the XML tag used in the XML file which stores
+    // all the tags below represent the XML tag used in the legacy XML file which stores
     // all the details related to the fingerprint state.
 
     // fingerprints contain multiple fingerprint inside the tag.
@@ -61,15 +72,85 @@ class FingerprintsUserState {
     private static final String ATTR_FINGER_ID = "fingerId";
     private static final String ATTR_DEVICE_ID = "deviceId";
 
+    // mutations arriving within this window are collapsed into a single write of the file
+    private static final long WRITE_DEBOUNCE_MS = 500;
+    // a failed write is retried after this, doubled up to MAX_WRITE_RETRY_MS while it fails
+    private static final long MIN_WRITE_RETRY_MS = 1000;
+    private static final long MAX_WRITE_RETRY_MS = 60 * 1000;
+
+    // when true, mutations are appended to JOURNAL_FILE and mFile is only rewritten once the
+    // journal grows past JOURNAL_COMPACT_THRESHOLD_BYTES
+    private static final boolean USE_JOURNAL = true;
+    private static final String JOURNAL_FILE = "settings_fingerprint.journal";
+    private static final long JOURNAL_COMPACT_THRESHOLD_BYTES = 8 * 1024;
+
     private final File mFile;
+    private final File mLegacyFile;
+    private final File mJournalFile;
+    private final FingerprintsJournal mJournal;
+    private final int mUserId;
+
+    // serializes doWriteState() so that a flush() never races an in-flight background write.
+    // Lock ordering: mWriteLock is always taken before "this".
+    private final Object mWriteLock = new Object();
+
+    // true when mFingerprints holds changes that have not been persisted yet
+    @GuardedBy("this")
+    private boolean mDirty;
+    // handle of the delayed write while it has not been handed to the I/O queue yet
+    @GuardedBy("this")
+    private Future<?> mPendingWrite;
+    @GuardedBy("this")
+    private long mWriteRetryMs = MIN_WRITE_RETRY_MS;
+    // bumped on every mutation, used to tell which state a write has persisted
+    @GuardedBy("this")
+    private long mGeneration;
+    @GuardedBy("this")
+    private long mPersistedGeneration;
+    // number of writes requested by mutations vs. number of writes actually performed
+    @GuardedBy("this")
+    private long mWriteRequestCount;
+    @GuardedBy("this")
+    private long mWriteCount;
+    // how the writes were done: small journal appends or full snapshots (compactions)
+    @GuardedBy("this")
+    private long mJournalAppendCount;
+    @GuardedBy("this")
+    private long mSnapshotWriteCount;
+    // mutations not yet appended to the journal
+    @GuardedBy("this")
+    private ArrayList<FingerprintsJournal.Record> mPendingRecords = new ArrayList<>();
+    // set when the journal cannot be appended to, the next write must be a full snapshot
+    @GuardedBy("this")
+    private boolean mNeedsSnapshot;
 
     @GuardedBy("this")
     // list that contains the fingerprint classes , the fingerprint form the mfile are stored inside
     // this variable. Also , this list is accessed synchronously throughout the program by multiple threads
     private final ArrayList<Fingerprint> mFingerprints = new ArrayList<Fingerprint>();
+    // index of each fingerId in mFingerprints, kept in sync by addLocked/removeAtLocked
+    @GuardedBy("this")
+    private final SparseIntArray mSlotByFingerId = new SparseIntArray();
+    // how many fingerprints use each name, names are not guaranteed unique after a rename
+    @GuardedBy("this")
+    private final HashMap<String, Integer> mNameCounts = new HashMap<>();
+    // fingerprint_name_template, resolved again when the locale it was resolved for changes
+    @GuardedBy("this")
+    private String mNameTemplate;
+    @GuardedBy("this")
+    private Locale mNameLocale;
     private final Context mCtx;
     // Context contains device and app sepecific informations.
 
+    // false until the file has been read, see ensureLoadedLocked(). Volatile so that readers of
+    // mSnapshot can skip the lock once loaded.
+    private volatile boolean mLoaded;
+
+    // immutable view of mFingerprints, replaced as a whole after every mutation
+    private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+    @GuardedBy("this")
+    private long mLoadTimeMs;
+
     /**
      * Constructor for the given class with Context and UserID
      * @param ctx // device and application related specification
@@ -78,12 +159,70 @@ class FingerprintsUserState {
     public FingerprintsUserState(Context ctx, int userId) {
         // get the mfile for the given user ID
         mFile = getFileForUser(userId);
+        mLegacyFile = new File(mFile.getParentFile(), LEGACY_FINGERPRINT_FILE);
+        mJournalFile = new File(mFile.getParentFile(), JOURNAL_FILE);
+        mJournal = new FingerprintsJournal(mJournalFile);
+        mUserId = userId;
         mCtx = ctx;
-        // in a synchronized manner , with this instance being the lock ,
-        // read state
+        // the file is not read here: construction has to stay cheap since it happens while
+        // FingerprintUtils holds its lock. See loadAsync() and ensureLoadedLocked().
+    }
+
+    /**
+     * Starts reading the file on the user's I/O queue, so that it is usually already loaded by
+     * the time the first caller needs it. Callers that arrive earlier wait on this state's lock
+     * only, never on other users.
+     */
+    public void loadAsync() {
+        FingerprintIoExecutor.getInstance().execute(mUserId, new Runnable() {
+            @Override
+            public void run() {
+                loadNow();
+            }
+        });
+    }
+
+    /**
+     * Reads the file on the calling thread, unless it was already loaded.
+     */
+    public void loadNow() {
+        if (mLoaded) {
+            return;
+        }
         synchronized (this) {
-            readStateSyncLocked();
+            ensureLoadedLocked();
+        }
+    }
+
+    public int getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * @return time spent reading and parsing the file, or -1 if it was not loaded yet
+     */
+    public synchronized long getLoadTimeMs() {
+        return mLoaded ? mLoadTimeMs : -1;
+    }
+
+    /**
+     * Reads the file on first access. Every method touching mFingerprints calls this first.
+     */
+    @GuardedBy("this")
+    private void ensureLoadedLocked() {
+        if (mLoaded) {
+            return;
         }
+        final long start = SystemClock.uptimeMillis();
+        readStateSyncLocked();
+        rebuildIndexLocked();
+        replayJournalLocked();
+        publishSnapshotLocked();
+        mLoadTimeMs = SystemClock.uptimeMillis() - start;
+        mLoaded = true;
+        if (DEBUG) Slog.d(TAG, "Loaded fingerprints of user " + mUserId + " in "
+                + mLoadTimeMs + "ms");
+        MetricsLogger.histogram(mCtx, "fingerprint_state_load_ms", (int) mLoadTimeMs);
     }
 
     /**
@@ -93,8 +232,12 @@ class FingerprintsUserState {
      */
     public void addFingerprint(int fingerId, int groupId) {
         synchronized (this) {
-            // add new finger print to our member variable mFingerprints (array list)
-            mFingerprints.add(new Fingerprint(getUniqueName(), groupId, fingerId, 0));
+            ensureLoadedLocked();
+            // an id is indexed once, the same rule the batch add and journal replay follow
+            if (!applyLocked(FingerprintBatchOperation.add(fingerId), groupId)) {
+                Slog.w(TAG, "Fingerprint " + fingerId + " already exists for user " + mUserId);
+                return;
+            }
             // write the change / current state
             scheduleWriteStateLocked();
         }
@@ -107,17 +250,14 @@ class FingerprintsUserState {
     public void removeFingerprint(int fingerId) {
 
         synchronized (this) {
-            // for i from 0 to size of mfingerprints
-            for (int i = 0; i < mFingerprints.size(); i++) {
-                // if the fingerprint id matches
-                if (mFingerprints.get(i).getFingerId() == fingerId) {
-                    // then remove the finger print from our list
-                    mFingerprints.remove(i);
-                    // persist the changes
-                    scheduleWriteStateLocked();
-                    // once changed break away from the loop
-                    break;
-                }
+            ensureLoadedLocked();
+            // look the slot up in the index instead of scanning the list
+            final int slot = mSlotByFingerId.get(fingerId, -1);
+            if (slot >= 0) {
+                removeAtLocked(slot);
+                journalLocked(FingerprintsJournal.Record.remove(fingerId));
+                // persist the changes
+                scheduleWriteStateLocked();
             }
         }
     }
@@ -131,45 +271,282 @@ class FingerprintsUserState {
      */
     public void renameFingerprint(int fingerId, CharSequence name) {
         synchronized (this) {
-            // for i from 0 to size of mfingerprint list
-            for (int i = 0; i < mFingerprints.size(); i++) {
-                // if the mfingerprint matches
-                if (mFingerprints.get(i).getFingerId() == fingerId) {
-                    // get the fingerprint object at the given index
-                    Fingerprint old = mFingerprints.get(i);
-                    // crete a new fingerprint object with old groupid , fingerid and device id at the given index
-                    mFingerprints.set(i, new Fingerprint(name, old.getGroupId(), old.getFingerId(),
-                            old.getDeviceId()));
-                    // persist the changes
-                    scheduleWriteStateLocked();
-                    break;
+            ensureLoadedLocked();
+            final int slot = mSlotByFingerId.get(fingerId, -1);
+            if (slot >= 0) {
+                // get the fingerprint object at the given index
+                Fingerprint old = mFingerprints.get(slot);
+                // crete a new fingerprint object with old groupid , fingerid and device id at the given index
+                setLocked(slot, new Fingerprint(name, old.getGroupId(), old.getFingerId(),
+                        old.getDeviceId()));
+                journalLocked(FingerprintsJournal.Record.rename(fingerId, name));
+                // persist the changes
+                scheduleWriteStateLocked();
+            }
+        }
+    }
+
+    /**
+     * Applies all operations under a single lock acquisition and schedules a single write.
+     * @param ops operations, applied in order
+     * @param groupId group of the fingerprints added by the batch
+     * @return for each operation, whether it was applied
+     */
+    public boolean[] applyBatch(List<FingerprintBatchOperation> ops, int groupId) {
+        final boolean[] results = new boolean[ops.size()];
+        synchronized (this) {
+            ensureLoadedLocked();
+            boolean changed = false;
+            for (int i = 0; i < ops.size(); i++) {
+                results[i] = applyLocked(ops.get(i), groupId);
+                changed |= results[i];
+            }
+            if (changed) {
+                scheduleWriteStateLocked();
+            }
+        }
+        return results;
+    }
+
+    @GuardedBy("this")
+    private boolean applyLocked(FingerprintBatchOperation op, int groupId) {
+        final int fingerId = op.getFingerId();
+        final int slot = mSlotByFingerId.get(fingerId, -1);
+        switch (op.getOp()) {
+            case FingerprintBatchOperation.OP_ADD: {
+                if (slot >= 0) {
+                    return false;
+                }
+                Fingerprint fp = new Fingerprint(getUniqueName(), groupId, fingerId, 0);
+                addLocked(fp);
+                journalLocked(FingerprintsJournal.Record.add(fp));
+                return true;
+            }
+            case FingerprintBatchOperation.OP_REMOVE: {
+                if (slot < 0) {
+                    return false;
+                }
+                removeAtLocked(slot);
+                journalLocked(FingerprintsJournal.Record.remove(fingerId));
+                return true;
+            }
+            case FingerprintBatchOperation.OP_RENAME: {
+                if (slot < 0 || TextUtils.isEmpty(op.getName())) {
+                    return false;
                 }
+                Fingerprint old = mFingerprints.get(slot);
+                setLocked(slot, new Fingerprint(op.getName(), old.getGroupId(),
+                        old.getFingerId(), old.getDeviceId()));
+                journalLocked(FingerprintsJournal.Record.rename(fingerId, op.getName()));
+                return true;
             }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Appends a fingerprint and indexes it.
+     */
+    @GuardedBy("this")
+    private void addLocked(Fingerprint fp) {
+        mSlotByFingerId.put(fp.getFingerId(), mFingerprints.size());
+        mFingerprints.add(fp);
+        addNameLocked(fp.getName());
+    }
+
+    /**
+     * Removes the fingerprint at the slot. The list keeps enrollment order, so the slots of the
+     * entries after it shift down by one; removals are rare compared to lookups.
+     */
+    @GuardedBy("this")
+    private void removeAtLocked(int slot) {
+        Fingerprint removed = mFingerprints.remove(slot);
+        mSlotByFingerId.delete(removed.getFingerId());
+        removeNameLocked(removed.getName());
+        for (int i = slot; i < mFingerprints.size(); i++) {
+            mSlotByFingerId.put(mFingerprints.get(i).getFingerId(), i);
+        }
+    }
+
+    /**
+     * Replaces the fingerprint at the slot with one of the same fingerId.
+     */
+    @GuardedBy("this")
+    private void setLocked(int slot, Fingerprint fp) {
+        Fingerprint old = mFingerprints.set(slot, fp);
+        removeNameLocked(old.getName());
+        addNameLocked(fp.getName());
+    }
+
+    @GuardedBy("this")
+    private void addNameLocked(CharSequence name) {
+        final String key = name.toString();
+        final Integer count = mNameCounts.get(key);
+        mNameCounts.put(key, count == null ? 1 : count + 1);
+    }
+
+    @GuardedBy("this")
+    private void removeNameLocked(CharSequence name) {
+        final String key = name.toString();
+        final Integer count = mNameCounts.get(key);
+        if (count == null || count <= 1) {
+            mNameCounts.remove(key);
+        } else {
+            mNameCounts.put(key, count - 1);
+        }
+    }
+
+    /**
+     * Rebuilds the indexes from mFingerprints after it was filled from disk.
+     */
+    @GuardedBy("this")
+    private void rebuildIndexLocked() {
+        mSlotByFingerId.clear();
+        mNameCounts.clear();
+        for (int i = 0; i < mFingerprints.size(); i++) {
+            Fingerprint fp = mFingerprints.get(i);
+            mSlotByFingerId.put(fp.getFingerId(), i);
+            addNameLocked(fp.getName());
         }
     }
 
     /**
-     * Get all fingerprints
-     * @return deep copy of mfingerprints list
+     * Get all fingerprints. Once the state is loaded this takes no lock and allocates nothing:
+     * Fingerprint objects are immutable, so the published snapshot is shared by every reader.
+     * @return unmodifiable snapshot of the mfingerprints list
      */
     public List<Fingerprint> getFingerprints() {
+        if (!mLoaded) {
+            synchronized (this) {
+                ensureLoadedLocked();
+            }
+        }
+        return mSnapshot.mFingerprints;
+    }
 
-        synchronized (this) {
-            // return a deep copy of the mfingerprint list
-            return getCopy(mFingerprints);
+    /**
+     * Looks up one fingerprint as reported by the given HAL device, e.g. to hand the named
+     * fingerprint to an authentication receiver. Lock free, and it never reads the file: it is
+     * called on the HAL callback thread, so a state that is not loaded yet only queues the load.
+     * The device-specific instance is created on the first lookup of each fingerprint in the
+     * current snapshot and shared afterwards.
+     * @return the fingerprint, or null if the user has no such fingerprint in that group or the
+     *         state is still loading
+     */
+    public Fingerprint getFingerprint(int groupId, int fingerId, long deviceId) {
+        if (!mLoaded) {
+            loadAsync();
+            return null;
+        }
+        return mSnapshot.getForDevice(groupId, fingerId, deviceId);
+    }
+
+    /**
+     * Compares the fingerprints with the templates a HAL enumerated, e.g. to reconcile the
+     * settings after the HAL lost or kept templates. Linear in the number of ids: each one is
+     * looked up in the fingerId index of a single snapshot.
+     * @param enumerated the ids held by the HAL, in any order and possibly repeated
+     * @return the removals, then the adds, making the fingerprints match the HAL
+     */
+    public ArrayList<FingerprintBatchOperation> diffWithEnumerated(int[] enumerated) {
+        loadNow();
+        return mSnapshot.diffWithEnumerated(enumerated);
+    }
+
+    /**
+     * Immutable copy of the fingerprint list together with the generation it reflects. It is
+     * replaced on every mutation, which keeps its caches coherent with the list.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0,
+                Collections.<Fingerprint>emptyList(), new SparseIntArray(0));
+
+        final long mVersion;
+        final List<Fingerprint> mFingerprints;
+        // fingerId to index in mFingerprints, never modified once published
+        final SparseIntArray mSlotByFingerId;
+        // per slot, the fingerprint with the deviceId of the last lookup; filled lazily
+        final AtomicReferenceArray<Fingerprint> mForDevice;
+
+        Snapshot(long version, List<Fingerprint> fingerprints, SparseIntArray slotByFingerId) {
+            mVersion = version;
+            mFingerprints = fingerprints;
+            mSlotByFingerId = slotByFingerId;
+            mForDevice = new AtomicReferenceArray<>(fingerprints.size());
+        }
+
+        Fingerprint getForDevice(int groupId, int fingerId, long deviceId) {
+            final int slot = mSlotByFingerId.get(fingerId, -1);
+            if (slot < 0) {
+                return null;
+            }
+            final Fingerprint stored = mFingerprints.get(slot);
+            if (stored.getGroupId() != groupId) {
+                return null;
+            }
+            if (stored.getDeviceId() == deviceId) {
+                return stored;
+            }
+            Fingerprint fp = mForDevice.get(slot);
+            if (fp == null || fp.getDeviceId() != deviceId) {
+                // racing lookups build equal instances, whichever is stored last is kept
+                fp = new Fingerprint(stored.getName(), stored.getGroupId(), fingerId, deviceId);
+                mForDevice.set(slot, fp);
+            }
+            return fp;
+        }
+
+        ArrayList<FingerprintBatchOperation> diffWithEnumerated(int[] enumerated) {
+            final boolean[] onHal = new boolean[mFingerprints.size()];
+            // ids only the HAL knows, each once
+            final SparseIntArray unknown = new SparseIntArray();
+            for (int i = 0; i < enumerated.length; i++) {
+                final int slot = mSlotByFingerId.get(enumerated[i], -1);
+                if (slot >= 0) {
+                    onHal[slot] = true;
+                } else {
+                    unknown.put(enumerated[i], 0);
+                }
+            }
+            final ArrayList<FingerprintBatchOperation> ops = new ArrayList<>();
+            for (int slot = 0; slot < onHal.length; slot++) {
+                if (!onHal[slot]) {
+                    final int fingerId = mFingerprints.get(slot).getFingerId();
+                    ops.add(FingerprintBatchOperation.remove(fingerId));
+                }
+            }
+            for (int i = 0; i < unknown.size(); i++) {
+                ops.add(FingerprintBatchOperation.add(unknown.keyAt(i)));
+            }
+            return ops;
         }
     }
 
+    @GuardedBy("this")
+    private void publishSnapshotLocked() {
+        mSnapshot = new Snapshot(mGeneration,
+                Collections.unmodifiableList(new ArrayList<>(mFingerprints)),
+                mSlotByFingerId.clone());
+    }
+
     /**
      * Finds a unique name for the given fingerprint
      * @return unique name
      */
+    @GuardedBy("this")
     private String getUniqueName() {
+        // resolving the resource is the expensive part, only format it inside the loop. Formatted
+        // with the resource configuration's locale, as Context.getString(id, args) does.
+        final Locale locale = mCtx.getResources().getConfiguration().getLocales().get(0);
+        if (mNameTemplate == null || !locale.equals(mNameLocale)) {
+            mNameTemplate = mCtx.getString(com.android.internal.R.string.fingerprint_name_template);
+            mNameLocale = locale;
+        }
         int guess = 1;
         while (true) {
-            // Not the most efficient algorithm in the world, but there shouldn't be more than 10
-            String name = mCtx.getString(com.android.internal.R.string.fingerprint_name_template,
-                    guess);
+            // each probe is a hash lookup, so this is linear in the number of names taken
+            String name = String.format(locale, mNameTemplate, guess);
             // if the name is unique return
             if (isUnique(name)) {
                 return name;
@@ -185,16 +562,10 @@ class FingerprintsUserState {
      * @param name
      * @return
      */
+    @GuardedBy("this")
     private boolean isUnique(String name) {
-        // for each fingerprint in mfingerprints
-        for (Fingerprint fp : mFingerprints) {
-            // if the name matches then return false , coz the name is already taken
-            if (fp.getName().equals(name)) {
-                return false;
-            }
-        }
-        // else it's unqiue
-        return true;
+        // if the name is in use then return false , coz the name is already taken
+        return !mNameCounts.containsKey(name);
     }
 
     private static File getFileForUser(int userId) {
@@ -214,110 +585,174 @@ class FingerprintsUserState {
     };
 
 
+    /**
+     * Marks the state dirty and makes sure a write is pending. A burst of mutations inside
+     * WRITE_DEBOUNCE_MS only queues mWriteStateRunnable once, so the file is written once
+     * with the latest state instead of once per mutation. Writes go through the user's serial
+     * queue on FingerprintIoExecutor, so they never overlap for the same file.
+     */
     private void scheduleWriteStateLocked() {
-        //NOTE this is done Asynchronosly and not locked with the instance
-        AsyncTask.execute(mWriteStateRunnable);
+        mGeneration++;
+        // readers and the writer both work off the snapshot, so it has to be current before the
+        // write is queued
+        publishSnapshotLocked();
+        mDirty = true;
+        mWriteRequestCount++;
+        if (mPendingWrite == null) {
+            mPendingWrite = FingerprintIoExecutor.getInstance().executeDelayed(mUserId,
+                    mWriteStateRunnable, WRITE_DEBOUNCE_MS);
+        }
     }
 
     /**
-     * Method to create a deep copy of the fingerprint list
-     * @param array
-     * @return list of fingerprint objects
+     * Synchronously persists any pending changes on the calling thread. Once this returns,
+     * every mutation made before the call is on disk. Used on shutdown and user switch.
      */
-    private ArrayList<Fingerprint> getCopy(ArrayList<Fingerprint> array) {
-        // create a new list of given array size
-        ArrayList<Fingerprint> result = new ArrayList<Fingerprint>(array.size());
-        for (int i = 0; i < array.size(); i++) {
-            // for each i get the finger print in the array
-            Fingerprint fp = array.get(i);
-            // create a new finger print with the existing name , id , group id and decise id
-            // and add to the result
-            result.add(new Fingerprint(fp.getName(), fp.getGroupId(), fp.getFingerId(),
-                    fp.getDeviceId()));
+    public void flush() {
+        synchronized (this) {
+            if (mPendingWrite != null) {
+                // if the delay already expired the queued write simply finds nothing to do
+                mPendingWrite.cancel(false);
+                mPendingWrite = null;
+            }
         }
-        // return result
-        return result;
+        doWriteState();
+    }
+
+    /**
+     * @return number of writes requested by mutations since this state was loaded
+     */
+    public synchronized long getWriteRequestCount() {
+        return mWriteRequestCount;
+    }
+
+    /**
+     * @return number of times the file was actually written
+     */
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return number of writes done by appending to the journal
+     */
+    public synchronized long getJournalAppendCount() {
+        return mJournalAppendCount;
+    }
+
+    /**
+     * @return number of writes that rewrote the whole file
+     */
+    public synchronized long getSnapshotWriteCount() {
+        return mSnapshotWriteCount;
+    }
+
+    /**
+     * @return true if some mutation has not reached the disk yet
+     */
+    public synchronized boolean hasUnpersistedChanges() {
+        return mGeneration != mPersistedGeneration;
+    }
+
+    /**
+     * @return number of writes saved by coalescing mutations together
+     */
+    public synchronized long getCoalescedWriteCount() {
+        return mWriteRequestCount - mWriteCount;
     }
 
     /**
      * This is the multi threaded method that is run simultaneously by various threads.
-     * To wrtie change to the mfile that is used for storing the fingerprint details in Xml Format
-     *
-     * Below is a sample XML file part , on how the finger print details are stored.
-     *
-     * <fingerprints>
-     *     <fingerprint>
-     *         <name>
-     *             the name
-     *         </name>
-     *         <fingerid>
-     *             the finger print id
-     *         </fingerid>
-     *         <groupid>
-     *             the group id
-     *         </groupid>
-     *         <deviseid>
-     *             the devise id
-     *         </deviseid>
-     *     </fingerprint>
-     * </fingerprints>
-     *
-     *
+     * To wrtie change to the mfile that is used for storing the fingerprint details, encoded by
+     * FingerprintsBinaryCodec. Usually only the mutations since the last write are appended to
+     * the journal; the whole file is rewritten (and the journal dropped) once the journal passes
+     * JOURNAL_COMPACT_THRESHOLD_BYTES or cannot be trusted. Once the binary file is safely
+     * written the legacy XML file, if any, is removed since it is no longer authoritative.
      */
     private void doWriteState() {
-        // AtomicFile is a class that helps performing atomic operations on file
-        // and it also creates a back up so that if an operation fails we can restore it.
-        AtomicFile destination = new AtomicFile(mFile);
-        //ArrayList of fingeprint class type
-        ArrayList<Fingerprint> fingerprints;
+        synchronized (mWriteLock) {
+            doWriteStateLocked();
+        }
+    }
+
+    @GuardedBy("mWriteLock")
+    private void doWriteStateLocked() {
+        final Snapshot snapshot;
+        final ArrayList<FingerprintsJournal.Record> records;
+        final boolean needsSnapshot;
 
         synchronized (this) {
-            // get copy of the fingerprint in our class instance
-            // note that it alwasy contains the upto date version and all changes are made to it
-            // so to persist we first need the latest version
-            fingerprints = getCopy(mFingerprints);
+            mPendingWrite = null;
+            // nothing changed since the last write, all pending mutations were already
+            // collapsed into an earlier one
+            if (!mDirty) {
+                return;
+            }
+            // the snapshot is immutable, so it can be serialized outside of the lock without
+            // copying the list
+            snapshot = mSnapshot;
+            records = mPendingRecords;
+            mPendingRecords = new ArrayList<>();
+            needsSnapshot = !USE_JOURNAL || mNeedsSnapshot;
+            mNeedsSnapshot = false;
+            mDirty = false;
         }
 
+        // cheap path: append just the mutations since the last write
+        if (!needsSnapshot && mJournal.length() < JOURNAL_COMPACT_THRESHOLD_BYTES) {
+            try {
+                mJournal.append(records);
+                synchronized (this) {
+                    mPersistedGeneration = snapshot.mVersion;
+                    mWriteCount++;
+                    mJournalAppendCount++;
+                }
+                return;
+            } catch (IOException e) {
+                // whatever part made it to disk is a torn tail, the full snapshot below
+                // supersedes it
+                Slog.w(TAG, "Failed to append to " + mJournalFile + ", writing snapshot", e);
+            }
+        }
+        writeSnapshotLocked(snapshot);
+    }
+
+    /**
+     * Writes the whole list to mFile and then drops the journal, whose records it now contains.
+     */
+    @GuardedBy("mWriteLock")
+    private void writeSnapshotLocked(Snapshot snapshot) {
+        // AtomicFile is a class that helps performing atomic operations on file
+        // and it also creates a back up so that if an operation fails we can restore it.
+        AtomicFile destination = new AtomicFile(mFile);
         FileOutputStream out = null;
         try {
             // we start writing (start wrtie is an operation provided by AtomicFile)
             out = destination.startWrite();
-
-            // we create a new XmlSerializer and set the output format , features and start tag
-            XmlSerializer serializer = Xml.newSerializer();
-            serializer.setOutput(out, "utf-8");
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            serializer.startDocument(null, true);
-            // each finger print is stored inside the <fingerprints> tag
-            serializer.startTag(null, TAG_FINGERPRINTS);
-
-            final int count = fingerprints.size();
-
-            for (int i = 0; i < count; i++) {
-                // for each fingerprint print in xml format
-                Fingerprint fp = fingerprints.get(i);
-                // start tag <fingerprint>
-                serializer.startTag(null, TAG_FINGERPRINT);
-                // store the value for <fingerid>
-                serializer.attribute(null, ATTR_FINGER_ID, Integer.toString(fp.getFingerId()));
-                // store the value for <name>
-                serializer.attribute(null, ATTR_NAME, fp.getName().toString());
-                // store the value for <groupid>
-                serializer.attribute(null, ATTR_GROUP_ID, Integer.toString(fp.getGroupId()));
-                // store the value for <deviseid>
-                serializer.attribute(null, ATTR_DEVICE_ID, Long.toString(fp.getDeviceId()));
-                // end the xml tag </fingerprint>
-                serializer.endTag(null, TAG_FINGERPRINT);
-            }
-            // add end tag
-            serializer.endTag(null, TAG_FINGERPRINTS);
-            // end document write
-            serializer.endDocument();
+            FingerprintsBinaryCodec.write(out, snapshot.mFingerprints);
             // finish write command
             destination.finishWrite(out);
+            synchronized (this) {
+                mPersistedGeneration = snapshot.mVersion;
+                mWriteCount++;
+                mSnapshotWriteCount++;
+                mWriteRetryMs = MIN_WRITE_RETRY_MS;
+            }
             // Any error while writing is fatal.
         } catch (Throwable t) {
             Slog.wtf(TAG, "Failed to write settings, restoring backup", t);
+            synchronized (this) {
+                // the state on disk is still the old one, and the journal records taken for
+                // this write are gone, so only a full snapshot can catch up
+                mDirty = true;
+                mNeedsSnapshot = true;
+                // retry on our own, the changes must not wait for an unrelated mutation
+                if (mPendingWrite == null) {
+                    mPendingWrite = FingerprintIoExecutor.getInstance().executeDelayed(mUserId,
+                            mWriteStateRunnable, mWriteRetryMs);
+                    mWriteRetryMs = Math.min(mWriteRetryMs * 2, MAX_WRITE_RETRY_MS);
+                }
+            }
             // fail wrtie will replace the file or any opetion with the backup file thus we don't lose data
             destination.failWrite(out);
             throw new IllegalStateException("Failed to write fingerprints", t);
@@ -325,42 +760,179 @@ class FingerprintsUserState {
             // close finally
             IoUtils.closeQuietly(out);
         }
+        mJournal.reset();
+        deleteLegacyFile();
+    }
+
+    /**
+     * Applies the journal on top of the state read from mFile.
+     */
+    @GuardedBy("this")
+    private void replayJournalLocked() {
+        if (!USE_JOURNAL) {
+            return;
+        }
+        ArrayList<FingerprintsJournal.Record> records = new ArrayList<>();
+        if (!mJournal.read(records)) {
+            // never append behind a corrupt tail
+            mNeedsSnapshot = true;
+        }
+        for (int i = 0; i < records.size(); i++) {
+            FingerprintsJournal.Record record = records.get(i);
+            final int slot = mSlotByFingerId.get(record.mFingerId, -1);
+            switch (record.mOp) {
+                case FingerprintsJournal.OP_ADD:
+                    if (slot < 0) {
+                        addLocked(new Fingerprint(record.mName, record.mGroupId,
+                                record.mFingerId, record.mDeviceId));
+                    }
+                    break;
+                case FingerprintsJournal.OP_REMOVE:
+                    if (slot >= 0) {
+                        removeAtLocked(slot);
+                    }
+                    break;
+                case FingerprintsJournal.OP_RENAME:
+                    if (slot >= 0) {
+                        Fingerprint old = mFingerprints.get(slot);
+                        setLocked(slot, new Fingerprint(record.mName, old.getGroupId(),
+                                old.getFingerId(), old.getDeviceId()));
+                    }
+                    break;
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void journalLocked(FingerprintsJournal.Record record) {
+        if (USE_JOURNAL) {
+            mPendingRecords.add(record);
+        }
     }
 
     /**
      * Method used to read the mfile , which contains the fingerprint data
-     * It is one of the multi threaded worker method and access the file in proper fashion
+     * It is one of the multi threaded worker method and access the file in proper fashion.
+     * If only the legacy XML file exists it is parsed and a write is scheduled, which migrates
+     * the user to the binary format.
      */
     private void readStateSyncLocked() {
+        AtomicFile source = new AtomicFile(mFile);
+        // AtomicFile also restores the backup left behind by an interrupted write
+        if (mFile.exists() || new File(mFile.getPath() + ".bak").exists()) {
+            // a previous migration wrote the binary file but died before removing the XML one.
+            // If the binary file turned out corrupt the XML one is kept until the recovered state
+            // is written.
+            if (readBinaryStateLocked(source) && mLegacyFile.exists()) {
+                FingerprintIoExecutor.getInstance().execute(mUserId, new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteLegacyFile();
+                    }
+                });
+            }
+            return;
+        }
+        if (readLegacyStateLocked()) {
+            Slog.i(TAG, "Migrating " + mLegacyFile + " to " + mFile);
+            mNeedsSnapshot = true;
+            scheduleWriteStateLocked();
+        }
+    }
+
+    /**
+     * @return false if the file was corrupt and the state was recovered instead
+     */
+    private boolean readBinaryStateLocked(AtomicFile source) {
+        FileInputStream in;
+        try {
+            in = source.openRead();
+        } catch (FileNotFoundException fnfe) {
+            Slog.i(TAG, "No fingerprint state");
+            return true;
+        }
+        try {
+            // the whole file is pulled in with one read (or mapped) and decoded from memory
+            mFingerprints.addAll(FingerprintsBinaryCodec.decode(
+                    FingerprintFileReader.readFully(in)));
+        } catch (IOException e) {
+            // truncated or failing its checksum. Throwing would bring system_server down again
+            // on every boot, so recover what can be recovered.
+            Slog.wtf(TAG, "Failed parsing settings file: " + mFile, e);
+            recoverCorruptStateLocked();
+            return false;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the content of a corrupt binary file: with the legacy XML file if it is still
+     * around, otherwise with no fingerprints. Either way the next write is a full snapshot, which
+     * replaces the corrupt file.
+     */
+    private void recoverCorruptStateLocked() {
+        mFingerprints.clear();
+        boolean recovered = false;
+        try {
+            recovered = readLegacyStateLocked();
+        } catch (IllegalStateException e) {
+            Slog.wtf(TAG, "Legacy settings file is corrupt too", e);
+            mFingerprints.clear();
+        }
+        mNeedsSnapshot = true;
+        if (recovered) {
+            Slog.w(TAG, "Recovered fingerprints of user " + mUserId + " from " + mLegacyFile);
+            scheduleWriteStateLocked();
+        } else {
+            Slog.w(TAG, "Starting with no fingerprints for user " + mUserId);
+        }
+    }
+
+    /**
+     * Reads the XML file used before the binary format was introduced.
+     * @return true if a legacy file was found and parsed
+     */
+    private boolean readLegacyStateLocked() {
 
         // FileInputStream is a boilerplate patter to read the buffered input from the file.
         FileInputStream in;
         // check if the mfile exist
-        if (!mFile.exists()) {
-            return;
+        if (!mLegacyFile.exists()) {
+            return false;
         }
         try {
             // create a new input stream from the mfile
-            in = new FileInputStream(mFile);
+            in = new FileInputStream(mLegacyFile);
         } catch (FileNotFoundException fnfe) {
             Slog.i(TAG, "No fingerprint state");
-            return;
+            return false;
         }
         try {
             // now the XmlPullParser is used to extract data from the XmlFile
             XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(in, null);
+            // buffered, the pull parser otherwise issues many tiny reads
+            parser.setInput(new BufferedInputStream(in), null);
             // parse
             parseStateLocked(parser);
 
         } catch (XmlPullParserException | IOException e) {
             // if any exception in parsing , IO Exception throw exception
             throw new IllegalStateException("Failed parsing settings file: "
-                    + mFile , e);
+                    + mLegacyFile , e);
         } finally {
             // finally close the input stream
             IoUtils.closeQuietly(in);
         }
+        return true;
+    }
+
+    private void deleteLegacyFile() {
+        if (mLegacyFile.exists()) {
+            // also removes a backup of the XML file left behind by an old interrupted write
+            new AtomicFile(mLegacyFile).delete();
+        }
     }
 
 
@@ -433,7 +1005,7 @@ class FingerprintsUserState {
                 String deviceId = parser.getAttributeValue(null, ATTR_DEVICE_ID);
                 // form fingerprint class and add it to the list
                 mFingerprints.add(new Fingerprint(name, Integer.parseInt(groupId),
-                        Integer.parseInt(fingerId), Integer.parseInt(deviceId)));
+                        Integer.parseInt(fingerId), Long.parseLong(deviceId)));
             }
         }
     }
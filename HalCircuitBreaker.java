@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops clients from starting HAL operations while the HAL keeps failing them.
+ *
+ * The outcome of the last WINDOW_SIZE authenticate, enroll, remove and enumerate requests is
+ * kept in a sliding window, failures counted per HAL result code. Once the window holds at least
+ * MIN_FAILURES failures making up FAILURE_RATE_PERCENT of it, the circuit opens and requests
+ * fail fast for OPEN_DURATION_MS. After that a single probe request is let through (half-open):
+ * its success closes the circuit, its failure opens it again. Outcomes of requests admitted
+ * before the circuit opened are ignored, only the probe decides.
+ *
+ * Clients run their HAL call through {@link #execute}, which takes the permit and reports the
+ * outcome.
+ */
+public class HalCircuitBreaker {
+    private static final String TAG = "FingerprintHalBreaker";
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private static final String[] STATE_NAMES = {
+            "closed", "open", "halfOpen"
+    };
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MIN_FAILURES = 5;
+    private static final int FAILURE_RATE_PERCENT = 50;
+    private static final long OPEN_DURATION_MS = 5 * 1000;
+
+    // result code recorded for a request that threw, outside the range of HAL RequestStatus values
+    private static final int RESULT_REMOTE_EXCEPTION = Integer.MIN_VALUE;
+    /**
+     * Returned by {@link #execute} when the circuit is open and the request was not run.
+     */
+    public static final int RESULT_REJECTED = Integer.MIN_VALUE + 1;
+    private static final int RESULT_SUCCESS = 0;
+
+    // permits handed out by allowRequest()
+    private static final int PERMIT_NONE = 0;
+    private static final int PERMIT_REGULAR = 1;
+    private static final int PERMIT_PROBE = 2;
+
+    /**
+     * One HAL call.
+     */
+    public interface Request {
+        /**
+         * @return the HAL result, 0 on success
+         */
+        int run() throws RemoteException;
+    }
+
+    private static final Object sInstanceLock = new Object();
+    private static HalCircuitBreaker sInstance;
+
+    // read without a lock on every request
+    private final AtomicInteger mState = new AtomicInteger(STATE_CLOSED);
+    private volatile long mOpenUntil;
+
+    // ring buffer of result codes, RESULT_SUCCESS for a success
+    @GuardedBy("this")
+    private final int[] mWindow = new int[WINDOW_SIZE];
+    @GuardedBy("this")
+    private int mWindowNext;
+    @GuardedBy("this")
+    private int mWindowCount;
+    @GuardedBy("this")
+    private int mWindowFailures;
+    // failures in the window per result code
+    @GuardedBy("this")
+    private final SparseIntArray mFailuresByCode = new SparseIntArray();
+
+    // statistics
+    private final AtomicLong mRejected = new AtomicLong();
+    @GuardedBy("this")
+    private long mOpenCount;
+
+    public static HalCircuitBreaker getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new HalCircuitBreaker();
+            }
+        }
+        return sInstance;
+    }
+
+    private HalCircuitBreaker() {
+    }
+
+    /**
+     * Runs the request unless the circuit is open, and records its outcome. A request that throws
+     * counts as a failure.
+     * @return the HAL result, or RESULT_REJECTED if the request was not run
+     */
+    public int execute(Request request) throws RemoteException {
+        final int permit = allowRequest();
+        if (permit == PERMIT_NONE) {
+            return RESULT_REJECTED;
+        }
+        int result = RESULT_REMOTE_EXCEPTION;
+        try {
+            result = request.run();
+            return result;
+        } finally {
+            if (result == RESULT_SUCCESS) {
+                onSuccess(permit);
+            } else {
+                onFailure(permit, result);
+            }
+        }
+    }
+
+    /**
+     * @return PERMIT_PROBE for the one request let through after the open period,
+     *         PERMIT_REGULAR while closed, PERMIT_NONE to fail the request right away
+     */
+    private int allowRequest() {
+        while (true) {
+            final int state = mState.get();
+            if (state == STATE_CLOSED) {
+                return PERMIT_REGULAR;
+            }
+            if (state == STATE_OPEN && SystemClock.elapsedRealtime() >= mOpenUntil) {
+                // the first caller after the open period is the probe
+                if (mState.compareAndSet(STATE_OPEN, STATE_HALF_OPEN)) {
+                    Slog.i(TAG, "Probing fingerprint HAL");
+                    return PERMIT_PROBE;
+                }
+                continue;
+            }
+            // open, or half-open with the probe in flight
+            mRejected.incrementAndGet();
+            return PERMIT_NONE;
+        }
+    }
+
+    private synchronized void onSuccess(int permit) {
+        if (permit == PERMIT_PROBE) {
+            Slog.i(TAG, "Fingerprint HAL recovered, closing circuit");
+            clearWindowLocked();
+            mState.set(STATE_CLOSED);
+            return;
+        }
+        // a request admitted before the circuit opened says nothing about the probe
+        if (mState.get() == STATE_CLOSED) {
+            addLocked(RESULT_SUCCESS);
+        }
+    }
+
+    /**
+     * @param result the non-zero HAL result code, or RESULT_REMOTE_EXCEPTION
+     */
+    private synchronized void onFailure(int permit, int result) {
+        if (permit == PERMIT_PROBE) {
+            openLocked(result);
+            return;
+        }
+        if (mState.get() != STATE_CLOSED) {
+            return;
+        }
+        addLocked(result);
+        if (mWindowFailures >= MIN_FAILURES
+                && mWindowFailures * 100 >= mWindowCount * FAILURE_RATE_PERCENT) {
+            openLocked(result);
+        }
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("HalCircuitBreaker:");
+        final long remainingMs = mOpenUntil - SystemClock.elapsedRealtime();
+        pw.println("  state=" + STATE_NAMES[mState.get()]
+                + (mState.get() == STATE_OPEN ? " reopensInMs=" + Math.max(0, remainingMs) : "")
+                + " window=" + mWindowCount
+                + " failures=" + mWindowFailures
+                + " opened=" + mOpenCount
+                + " rejected=" + mRejected.get());
+        for (int i = 0; i < mFailuresByCode.size(); i++) {
+            pw.println("    result " + mFailuresByCode.keyAt(i) + ": "
+                    + mFailuresByCode.valueAt(i));
+        }
+    }
+
+    @GuardedBy("this")
+    private void openLocked(int result) {
+        mOpenCount++;
+        mOpenUntil = SystemClock.elapsedRealtime() + OPEN_DURATION_MS;
+        mState.set(STATE_OPEN);
+        Slog.w(TAG, "Fingerprint HAL failing (last result=" + result + "), rejecting requests for "
+                + OPEN_DURATION_MS + "ms");
+    }
+
+    @GuardedBy("this")
+    private void addLocked(int result) {
+        if (mWindowCount == WINDOW_SIZE) {
+            // evict the oldest outcome
+            final int evicted = mWindow[mWindowNext];
+            if (evicted != RESULT_SUCCESS) {
+                mWindowFailures--;
+                final int count = mFailuresByCode.get(evicted) - 1;
+                if (count == 0) {
+                    mFailuresByCode.delete(evicted);
+                } else {
+                    mFailuresByCode.put(evicted, count);
+                }
+            }
+        } else {
+            mWindowCount++;
+        }
+        mWindow[mWindowNext] = result;
+        mWindowNext = (mWindowNext + 1) % WINDOW_SIZE;
+        if (result != RESULT_SUCCESS) {
+            mWindowFailures++;
+            mFailuresByCode.put(result, mFailuresByCode.get(result) + 1);
+        }
+    }
+
+    @GuardedBy("this")
+    private void clearWindowLocked() {
+        mWindowNext = 0;
+        mWindowCount = 0;
+        mWindowFailures = 0;
+        mFailuresByCode.clear();
+    }
+}
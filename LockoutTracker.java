@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+
+/**
+ * Failed attempt accounting and lockout state per user, meant to back
+ * {@link AuthenticationClient#handleFailedAttempt()} and
+ * {@link AuthenticationClient#resetFailedAttempts()}.
+ *
+ * <ul>
+ * <li>{@link AuthenticationClient#LOCKOUT_TIMED}: MAX_FAILED_ATTEMPTS_LOCKOUT_TIMED failures
+ * within FAILED_ATTEMPTS_WINDOW_MS lock the user out for FAIL_LOCKOUT_TIMEOUT_MS.</li>
+ * <li>{@link AuthenticationClient#LOCKOUT_PERMANENT}: MAX_FAILED_ATTEMPTS_LOCKOUT_PERMANENT
+ * failures without a success lock the user out until {@link #resetLockout} is called. This
+ * state survives reboots.</li>
+ * </ul>
+ *
+ * Everything is kept in atomics, so concurrent clients failing at once never block each other
+ * and {@link #getLockoutMode} can be polled by keyguard without taking a lock. Timed lockouts
+ * expire lazily by comparing against a deadline; no timer is armed per attempt.
+ */
+public class LockoutTracker {
+    private static final String TAG = "LockoutTracker";
+
+    public static final int MAX_FAILED_ATTEMPTS_LOCKOUT_TIMED = 5;
+    public static final int MAX_FAILED_ATTEMPTS_LOCKOUT_PERMANENT = 20;
+    public static final long FAIL_LOCKOUT_TIMEOUT_MS = 30 * 1000;
+    public static final long FAILED_ATTEMPTS_WINDOW_MS = 5 * 60 * 1000;
+
+    // its presence in the user's system directory marks a permanent lockout
+    private static final String LOCKOUT_FILE = "fingerprint_lockout";
+
+    /**
+     * Told when a timed lockout of a user expires, so the HAL or keyguard can be updated.
+     */
+    public interface Listener {
+        void onTimedLockoutExpired(int userId);
+    }
+
+    private static final Object sInstanceLock = new Object();
+    private static LockoutTracker sInstance;
+
+    private final ConcurrentUserRegistry<UserLockout> mUsers = new ConcurrentUserRegistry<>();
+    private volatile Listener mListener;
+
+    public static LockoutTracker getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new LockoutTracker();
+            }
+        }
+        return sInstance;
+    }
+
+    private LockoutTracker() {
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Counts a failed attempt.
+     * @return the lockout mode the user is in after this attempt
+     */
+    public int onFailedAttempt(int userId) {
+        return getUser(userId).onFailedAttempt();
+    }
+
+    /**
+     * Clears the failed attempts after a successful authentication. A permanent lockout is only
+     * cleared by {@link #resetLockout}.
+     */
+    public void onSuccess(int userId) {
+        getUser(userId).clearAttempts();
+    }
+
+    /**
+     * Clears every failed attempt and lockout of the user, e.g. after a valid credential.
+     */
+    public void resetLockout(int userId) {
+        getUser(userId).reset();
+    }
+
+    /**
+     * @return the current lockout mode of the user, without taking any lock
+     */
+    public int getLockoutMode(int userId) {
+        return getUser(userId).getLockoutMode();
+    }
+
+    private UserLockout getUser(int userId) {
+        UserLockout user = mUsers.get(userId);
+        if (user != null) {
+            return user;
+        }
+        return mUsers.computeIfAbsent(userId, new IntFunction<UserLockout>() {
+            @Override
+            public UserLockout apply(int id) {
+                return new UserLockout(id);
+            }
+        });
+    }
+
+    private final class UserLockout {
+        final int mUserId;
+        final File mLockoutFile;
+        // times of the most recent failures, slot i holds failure number i modulo the size
+        final AtomicLongArray mRecentFailures =
+                new AtomicLongArray(MAX_FAILED_ATTEMPTS_LOCKOUT_TIMED);
+        final AtomicInteger mFailureSeq = new AtomicInteger();
+        // failures since the last success, for the permanent lockout
+        final AtomicInteger mPermanentFailures = new AtomicInteger();
+        // failures before this time do not count towards a timed lockout anymore
+        final AtomicLong mCountFrom = new AtomicLong(1);
+        // end of the current timed lockout, in elapsedRealtime
+        final AtomicLong mTimedLockoutDeadline = new AtomicLong();
+        volatile boolean mPermanent;
+
+        UserLockout(int userId) {
+            mUserId = userId;
+            mLockoutFile = new File(Environment.getUserSystemDirectory(userId), LOCKOUT_FILE);
+            // a single stat, only done the first time the user is seen
+            mPermanent = mLockoutFile.exists();
+            if (mPermanent) {
+                mPermanentFailures.set(MAX_FAILED_ATTEMPTS_LOCKOUT_PERMANENT);
+            }
+        }
+
+        int onFailedAttempt() {
+            final long now = SystemClock.elapsedRealtime();
+            if (mPermanentFailures.incrementAndGet() >= MAX_FAILED_ATTEMPTS_LOCKOUT_PERMANENT) {
+                if (!mPermanent) {
+                    mPermanent = true;
+                    persistPermanent(true);
+                }
+                return AuthenticationClient.LOCKOUT_PERMANENT;
+            }
+
+            final int seq = mFailureSeq.getAndIncrement();
+            final int size = mRecentFailures.length();
+            mRecentFailures.set(seq % size, now);
+            // the slot after ours holds the failure size - 1 attempts before this one, i.e.
+            // the oldest of the last `size` failures
+            final long oldest = mRecentFailures.get((seq + 1) % size);
+            if (oldest != 0 && oldest >= mCountFrom.get()
+                    && now - oldest <= FAILED_ATTEMPTS_WINDOW_MS) {
+                startTimedLockout(now);
+            }
+            return getLockoutMode();
+        }
+
+        private void startTimedLockout(long now) {
+            final long deadline = now + FAIL_LOCKOUT_TIMEOUT_MS;
+            long current = mTimedLockoutDeadline.get();
+            while (deadline > current) {
+                if (mTimedLockoutDeadline.compareAndSet(current, deadline)) {
+                    // failures up to now are spent on this lockout
+                    mCountFrom.set(now + 1);
+                    scheduleExpiry(deadline);
+                    return;
+                }
+                current = mTimedLockoutDeadline.get();
+            }
+        }
+
+        /**
+         * One callback per lockout, never per attempt.
+         */
+        private void scheduleExpiry(final long deadline) {
+            BackgroundThread.getHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    final Listener listener = mListener;
+                    // ignore if the lockout was extended or reset in the meantime
+                    if (listener != null && mTimedLockoutDeadline.get() == deadline) {
+                        listener.onTimedLockoutExpired(mUserId);
+                    }
+                }
+            }, deadline - SystemClock.elapsedRealtime());
+        }
+
+        void clearAttempts() {
+            mPermanentFailures.set(mPermanent ? MAX_FAILED_ATTEMPTS_LOCKOUT_PERMANENT : 0);
+            mCountFrom.set(SystemClock.elapsedRealtime() + 1);
+        }
+
+        void reset() {
+            final boolean wasPermanent = mPermanent;
+            mPermanent = false;
+            mPermanentFailures.set(0);
+            mTimedLockoutDeadline.set(0);
+            mCountFrom.set(SystemClock.elapsedRealtime() + 1);
+            if (wasPermanent) {
+                persistPermanent(false);
+            }
+        }
+
+        int getLockoutMode() {
+            if (mPermanent) {
+                return AuthenticationClient.LOCKOUT_PERMANENT;
+            }
+            if (SystemClock.elapsedRealtime() < mTimedLockoutDeadline.get()) {
+                return AuthenticationClient.LOCKOUT_TIMED;
+            }
+            return AuthenticationClient.LOCKOUT_NONE;
+        }
+
+        /**
+         * Creates or deletes the marker file on the user's I/O queue, in order with the user's
+         * other fingerprint writes.
+         */
+        private void persistPermanent(final boolean locked) {
+            FingerprintIoExecutor.getInstance().execute(mUserId, new Runnable() {
+                @Override
+                public void run() {
+                    // re-read the flag, a reset may have happened since this was queued
+                    if (mPermanent != locked) {
+                        return;
+                    }
+                    try {
+                        if (locked) {
+                            mLockoutFile.createNewFile();
+                        } else {
+                            mLockoutFile.delete();
+                        }
+                    } catch (IOException e) {
+                        Slog.w(TAG, "Failed to update " + mLockoutFile, e);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.fingerprint;
+
+import android.hardware.fingerprint.IFingerprintServiceReceiver;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers HAL results to {@link IFingerprintServiceReceiver}s off the HAL callback thread, so a
+ * slow or wedged app only delays its own notifications.
+ *
+ * Deliveries to one receiver run in order, one at a time; different receivers share a small
+ * bounded pool. A progress delivery still queued past its deadline is dropped, as is the oldest
+ * one when a receiver's queue is full. A receiver whose calls keep taking longer than
+ * SLOW_DELIVERY_MS is demoted: only the latest of its pending progress is kept until it answers
+ * promptly again. A binder call that is already blocked cannot be interrupted, demotion bounds
+ * what piles up behind it.
+ *
+ * Results that end an operation and errors are required: they are queued in order with the
+ * progress before them, but never dropped. A demoted receiver keeps its strikes for
+ * SLOW_STRIKE_RETENTION_MS after its queue goes idle.
+ */
+class ReceiverDispatcher {
+    private static final String TAG = "FingerprintReceiverDispatcher";
+
+    private static final int MAX_THREADS = 4;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    // results older than this are of no use to the app anymore
+    private static final long DELIVERY_DEADLINE_MS = 2000;
+    private static final long SLOW_DELIVERY_MS = 500;
+    // consecutive slow deliveries before a receiver is demoted
+    private static final int MAX_SLOW_STRIKES = 3;
+    private static final int MAX_PENDING = 16;
+    private static final int MAX_PENDING_DEMOTED = 1;
+    // an idle receiver with slow strikes is forgotten after this, e.g. once its app is gone
+    private static final long SLOW_STRIKE_RETENTION_MS = 60 * 1000;
+
+    /**
+     * One call on a receiver.
+     */
+    public abstract static class Delivery {
+        private final String mName;
+        // exempt from the deadline, overflow and demotion rules
+        private final boolean mRequired;
+        long mDeadline;
+
+        /**
+         * A progress delivery, dropped if the receiver falls behind.
+         */
+        public Delivery(String name) {
+            this(name, false /* required */);
+        }
+
+        /**
+         * @param required true for a call that ends the operation, which is never dropped
+         */
+        public Delivery(String name, boolean required) {
+            mName = name;
+            mRequired = required;
+        }
+
+        public abstract void deliver(IFingerprintServiceReceiver receiver) throws RemoteException;
+    }
+
+    private static final Object sInstanceLock = new Object();
+    private static ReceiverDispatcher sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // receivers with deliveries pending or running, or with recent slow strikes; removed once
+    // drained and answering promptly, or SLOW_STRIKE_RETENTION_MS after that otherwise
+    @GuardedBy("this")
+    private final HashMap<IBinder, ReceiverQueue> mQueues = new HashMap<>();
+
+    // statistics
+    @GuardedBy("this")
+    private long mDelivered;
+    @GuardedBy("this")
+    private long mDroppedOverflow;
+    @GuardedBy("this")
+    private long mDroppedExpired;
+    @GuardedBy("this")
+    private long mFailed;
+    @GuardedBy("this")
+    private long mSlow;
+    @GuardedBy("this")
+    private long mDemotions;
+    @GuardedBy("this")
+    private long mExpiredStrikes;
+
+    private final class ReceiverQueue implements Runnable {
+        final IFingerprintServiceReceiver mReceiver;
+        final IBinder mBinder;
+        @GuardedBy("ReceiverDispatcher.this")
+        final ArrayDeque<Delivery> mPending = new ArrayDeque<>();
+        @GuardedBy("ReceiverDispatcher.this")
+        boolean mActive;
+        @GuardedBy("ReceiverDispatcher.this")
+        int mSlowStrikes;
+
+        // forgets the receiver once it stayed idle for SLOW_STRIKE_RETENTION_MS
+        final Runnable mExpire = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ReceiverDispatcher.this) {
+                    if (!mActive && mQueues.get(mBinder) == ReceiverQueue.this) {
+                        mQueues.remove(mBinder);
+                        mExpiredStrikes++;
+                    }
+                }
+            }
+        };
+
+        ReceiverQueue(IFingerprintServiceReceiver receiver, IBinder binder) {
+            mReceiver = receiver;
+            mBinder = binder;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Delivery delivery;
+                synchronized (ReceiverDispatcher.this) {
+                    delivery = mPending.poll();
+                    if (delivery == null) {
+                        mActive = false;
+                        if (mSlowStrikes == 0) {
+                            mQueues.remove(mBinder);
+                        } else {
+                            // a receiver under suspicion keeps its strikes for a while
+                            final Handler handler = BackgroundThread.getHandler();
+                            handler.removeCallbacks(mExpire);
+                            handler.postDelayed(mExpire, SLOW_STRIKE_RETENTION_MS);
+                        }
+                        return;
+                    }
+                    if (!delivery.mRequired && SystemClock.uptimeMillis() > delivery.mDeadline) {
+                        mDroppedExpired++;
+                        continue;
+                    }
+                }
+                final long start = SystemClock.uptimeMillis();
+                boolean failed = false;
+                try {
+                    delivery.deliver(mReceiver);
+                } catch (RemoteException e) {
+                    Slog.w(TAG, "Failed to notify " + delivery.mName + ":", e);
+                    failed = true;
+                } catch (RuntimeException e) {
+                    // a bad delivery must not take the queue down with it
+                    Slog.e(TAG, "Delivery " + delivery.mName + " threw", e);
+                    failed = true;
+                }
+                onDelivered(this, delivery, SystemClock.uptimeMillis() - start, failed);
+            }
+        }
+    }
+
+    public static ReceiverDispatcher getInstance() {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new ReceiverDispatcher();
+            }
+        }
+        return sInstance;
+    }
+
+    private ReceiverDispatcher() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // results are user visible, keep them close to foreground
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                                r.run();
+                            }
+                        }, "fingerprint-receiver-" + threadCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a call on the receiver, after every call previously queued for it. A progress call
+     * may be dropped, a required one is always made.
+     */
+    public void post(IFingerprintServiceReceiver receiver, Delivery delivery) {
+        final IBinder binder = receiver.asBinder();
+        final ReceiverQueue queue;
+        synchronized (this) {
+            ReceiverQueue existing = mQueues.get(binder);
+            if (existing == null) {
+                existing = new ReceiverQueue(receiver, binder);
+                mQueues.put(binder, existing);
+            }
+            queue = existing;
+            delivery.mDeadline = SystemClock.uptimeMillis() + DELIVERY_DEADLINE_MS;
+            if (!delivery.mRequired) {
+                trimLocked(queue, queue.mSlowStrikes >= MAX_SLOW_STRIKES
+                        ? MAX_PENDING_DEMOTED : MAX_PENDING);
+            }
+            queue.mPending.add(delivery);
+            if (queue.mActive) {
+                return;
+            }
+            queue.mActive = true;
+        }
+        mExecutor.execute(queue);
+    }
+
+    /**
+     * Queues onError after everything queued for the receiver. An error ends the operation, it
+     * is never dropped.
+     */
+    public void postError(IFingerprintServiceReceiver receiver, final long deviceId,
+            final int error, final int vendorCode) {
+        post(receiver, new Delivery("onError", true /* required */) {
+            @Override
+            public void deliver(IFingerprintServiceReceiver r) throws RemoteException {
+                r.onError(deviceId, error, vendorCode);
+            }
+        });
+    }
+
+    /**
+     * Drops the oldest progress until less than limit is pending; required deliveries are
+     * neither counted nor dropped.
+     */
+    @GuardedBy("this")
+    private void trimLocked(ReceiverQueue queue, int limit) {
+        int droppable = 0;
+        for (Delivery pending : queue.mPending) {
+            if (!pending.mRequired) {
+                droppable++;
+            }
+        }
+        final Iterator<Delivery> it = queue.mPending.iterator();
+        while (droppable >= limit && it.hasNext()) {
+            if (!it.next().mRequired) {
+                it.remove();
+                droppable--;
+                mDroppedOverflow++;
+            }
+        }
+    }
+
+    private synchronized void onDelivered(ReceiverQueue queue, Delivery delivery, long durationMs,
+            boolean failed) {
+        if (failed) {
+            mFailed++;
+        } else {
+            mDelivered++;
+        }
+        if (durationMs < SLOW_DELIVERY_MS) {
+            queue.mSlowStrikes = 0;
+            return;
+        }
+        mSlow++;
+        if (++queue.mSlowStrikes == MAX_SLOW_STRIKES) {
+            mDemotions++;
+            Slog.w(TAG, "Demoting slow receiver, " + delivery.mName + " took " + durationMs
+                    + "ms");
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("ReceiverDispatcher:");
+        pw.println("  receivers=" + mQueues.size()
+                + " delivered=" + mDelivered
+                + " failed=" + mFailed
+                + " droppedOverflow=" + mDroppedOverflow
+                + " droppedExpired=" + mDroppedExpired
+                + " slow=" + mSlow
+                + " demotions=" + mDemotions
+                + " expiredStrikes=" + mExpiredStrikes);
+    }
+}
@@ -24,13 +24,28 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.util.Slog;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.logging.MetricsLogger;
 
+import java.util.ArrayList;
+
 /**
  * A class to keep track of the remove state for a given client.
  */
 public abstract class RemovalClient extends ClientMonitor {
-    private int mFingerId; //fingerprint id
+    // fingerprint ids to remove, sent to the HAL one at a time. A single 0 asks the HAL to remove
+    // every fingerprint of the group.
+    private final int[] mFingerIds;
+    // onRemoved on the HAL callback thread races stop() on the service thread
+    private final Object mRemovalLock = new Object();
+    // index in mFingerIds of the next id to send to the HAL
+    @GuardedBy("mRemovalLock")
+    private int mNextIndex;
+    // removals confirmed by the HAL and not yet applied to the settings
+    @GuardedBy("mRemovalLock")
+    private ArrayList<FingerprintBatchOperation> mPendingRemovals = new ArrayList<>();
+    // see ClientLifecycle
+    private final ClientLifecycle mLifecycle = new ClientLifecycle();
 
 
     /*
@@ -50,35 +65,109 @@ public abstract class RemovalClient extends ClientMonitor {
             IFingerprintServiceReceiver receiver, int fingerId, int groupId, int userId,
             boolean restricted, String owner) {
 
+        //fingerId 0 removes every fingerprint of the group
+        this(context, halDeviceId, token, receiver, new int[] { fingerId }, groupId, userId,
+                restricted, owner);
+    }
+
+    /*
+        constructor for removing several fingerprints in one operation. The receiver is told
+        about each removal, with remaining counting down across all of them, and the settings
+        are written once at the end.
+    */
+    public RemovalClient(Context context, long halDeviceId, IBinder token,
+            IFingerprintServiceReceiver receiver, int[] fingerIds, int groupId, int userId,
+            boolean restricted, String owner) {
+
         //calls the constructor in ClientMonitor and initializes the device id, user id, group id for set of fingerprints and sets the name of the owner of the device
         super(context, halDeviceId, token, receiver, userId, groupId, restricted, owner);
-        mFingerId = fingerId; //Intialize the finger ID
+        if (fingerIds.length == 0) {
+            throw new IllegalArgumentException("No fingerprint to remove");
+        }
+        mFingerIds = fingerIds.clone(); //Intialize the finger IDs
 
     }
 
 
     /**
-    * function removes the client fingerprint
+    * function removes the client fingerprint, or the first of the requested fingerprints
     */
     @Override
     public int start() {
+        if (!mLifecycle.start()) {
+            // cancelled before it started, or started twice: nothing to run
+            Slog.w(TAG, "startRemove: client is " + mLifecycle);
+            return ERROR_ESRCH;
+        }
+        synchronized (mRemovalLock) {
+            mNextIndex = 0;
+        }
+        final int result = removeNext();
+        if (result != 0) {
+            // the operation never ran: no cancel to send to the HAL, no callback to accept
+            mLifecycle.finish();
+        }
+        return result;
+    }
+
+    /**
+    * asks the HAL to remove the next requested fingerprint
+    */
+    private int removeNext() {
 
         //gets the interface for fingerprint service
-        IBiometricsFingerprint daemon = getFingerprintDaemon();
+        final IBiometricsFingerprint daemon = getFingerprintDaemon();
+
+        if (daemon == null) {
+            //logs it if there is no fingerprint HAL
+            Slog.w(TAG, "startRemove: no fingerprint HAL!");
+            //whatever the HAL already removed must still be dropped from the settings
+            commitRemovals();
+            final boolean started;
+            synchronized (mRemovalLock) {
+                started = mNextIndex > 0;
+            }
+            if (started) {
+                //the service only reports ERROR_ESRCH coming from start(), tell the client here
+                onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+            }
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
+        }
+        final int fingerId;
+        synchronized (mRemovalLock) {
+            fingerId = mFingerIds[mNextIndex++];
+        }
 
         // The fingerprint template ids will be removed when we get confirmation from the HAL
         try {
 
-            //checks for the permissions and removes any fingerprints based on the groupId and fingerId
-            final int result = daemon.remove(getGroupId(), mFingerId);
+            //checks for the permissions and removes any fingerprints based on the groupId and fingerId,
+            //failing fast while the HAL keeps failing requests
+            final int result = HalCircuitBreaker.getInstance().execute(
+                    new HalCircuitBreaker.Request() {
+                @Override
+                public int run() throws RemoteException {
+                    return daemon.remove(getGroupId(), fingerId);
+                }
+            });
+            if (result == HalCircuitBreaker.RESULT_REJECTED) {
+                Slog.w(TAG, "startRemove: HAL circuit open");
+                //whatever the HAL already removed must still be dropped from the settings
+                commitRemovals();
+                onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+                return ERROR_ESRCH;
+            }
             if (result != 0) {
 
                 //file is logged if there is a failure in the fingerprint removal
-                Slog.w(TAG, "startRemove with id = " + mFingerId + " failed, result=" + result);
+                Slog.w(TAG, "startRemove with id = " + fingerId + " failed, result=" + result);
 
                 //the histogram is sampled with the fingerprint data
                 MetricsLogger.histogram(getContext(), "fingerprintd_remove_start_error", result);
 
+                //whatever the HAL already removed must still be dropped from the settings
+                commitRemovals();
                 //exception is notified
                 onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
                 return result;
@@ -86,15 +175,19 @@ public abstract class RemovalClient extends ClientMonitor {
         } catch (RemoteException e) {
             //logs the error if the removal process is a failure
             Slog.e(TAG, "startRemove failed", e);
+            //the HAL will not report this removal, end the request like a failed one
+            commitRemovals();
+            onError(FingerprintManager.FINGERPRINT_ERROR_HW_UNAVAILABLE, 0 /* vendorCode */);
+            //Likely fingerprint HAL is dead.
+            return ERROR_ESRCH;
         }
         return 0;
     }
 
     @Override
     public int stop(boolean initiatedByClient) {
-        //boolean variable mAlreadyCancelled shows the user is already authenticated
-        // And then stopped further authentication
-        if (mAlreadyCancelled) {
+        //only the first stop of a running removal reaches the HAL, whichever thread it comes from
+        if (!mLifecycle.beginCancel()) {
 
             //logs it if the client stops the fingerprint removal process
             Slog.w(TAG, "stopRemove: already cancelled!");
@@ -108,6 +201,7 @@ public abstract class RemovalClient extends ClientMonitor {
         if (daemon == null) {
             //logs it if there is no fingerprint found
             Slog.w(TAG, "stopRemoval: no fingerprint HAL!");
+            mLifecycle.cancelFailed();
             //Likely fingerprint HAL is dead.
             return ERROR_ESRCH; //returns an error specifying that no process with that specific daemon is found
 
@@ -119,6 +213,7 @@ public abstract class RemovalClient extends ClientMonitor {
 
                 //logs it if the force stop of the daemon is unsuccessful
                 Slog.w(TAG, "stopRemoval failed, result=" + result);
+                mLifecycle.cancelFailed();
                 return result;
 
             }
@@ -127,14 +222,27 @@ public abstract class RemovalClient extends ClientMonitor {
 
             //catches the exception and logs it in TAG
             Slog.e(TAG, "stopRemoval failed", e);
+            mLifecycle.cancelFailed();
             //Likely fingerprint HAL is dead.
             return ERROR_ESRCH;//returns an error specifying that no process with that specific daemon is found
 
         }
-        mAlreadyCancelled = true;
+        // the HAL will not report the rest, persist what it did remove
+        commitRemovals();
         return 0; // success
     }
 
+    @Override
+    public boolean onError(int error, int vendorCode) {
+        // queued behind the results already posted for the receiver, see ReceiverDispatcher
+        final IFingerprintServiceReceiver receiver = getReceiver();
+        if (receiver != null) {
+            ReceiverDispatcher.getInstance().postError(receiver, getHalDeviceId(), error,
+                    vendorCode);
+        }
+        return true; // errors always remove current client
+    }
+
 
     /*
      * @return true if we're done.
@@ -142,37 +250,83 @@ public abstract class RemovalClient extends ClientMonitor {
     // remaining - number of remaining available valid attempts to authenticate fingerId before locking
     // fingerId - fingerprint provided by the user
     // groupId - fingerId belongs to the groupId
-    private boolean sendRemoved(int fingerId, int groupId, int remaining) {
+    private boolean sendRemoved(final int fingerId, final int groupId, final int remaining) {
 
         //obtains the receiver for fingerprint service from the device
         IFingerprintServiceReceiver receiver = getReceiver();
-        try {
-            //check for any receiver available
-            if (receiver != null) {
-                //notifies using device Id once the fingerprint is removed
-                receiver.onRemoved(getHalDeviceId(), fingerId, groupId, remaining);
-            }
-        } catch (RemoteException e) {
-            Slog.w(TAG, "Failed to notify Removed:", e);
+        //check for any receiver available
+        if (receiver != null) {
+            final long deviceId = getHalDeviceId();
+            //notifies using device Id once the fingerprint is removed, off the HAL callback
+            //thread; the last removal ends the request and is never dropped
+            ReceiverDispatcher.getInstance().post(receiver,
+                    new ReceiverDispatcher.Delivery("onRemoved", remaining == 0 /* required */) {
+                @Override
+                public void deliver(IFingerprintServiceReceiver r) throws RemoteException {
+                    r.onRemoved(deviceId, fingerId, groupId, remaining);
+                }
+            });
         }
         return remaining == 0;
     }
 
 
     /**
-    * return status of the fingerprint removal process
+    * return status of the fingerprint removal process. The removals are collected and applied
+    * to the settings as one batch, persisted once, when the last fingerprint is gone.
     */
     @Override
     public boolean onRemoved(int fingerId, int groupId, int remaining) {
         //Check the fingerId is not having null value
         if (fingerId != 0) {
-            //creates a new instance of FingerPrint and removes the fingerprint by indexing the userId and fingerId
-            FingerprintUtils.getInstance().removeFingerprintIdForUser(getContext(), fingerId,
-                    getTargetUserId());
-            
+            synchronized (mRemovalLock) {
+                mPendingRemovals.add(FingerprintBatchOperation.remove(fingerId));
+            }
         }
-        return sendRemoved(fingerId, getGroupId(), remaining);
+        //a removal racing a cancel is not reported, but the HAL did remove the template
+        if (!mLifecycle.acceptCallback()) {
+            commitRemovals();
+            return mLifecycle.getState() == ClientLifecycle.STATE_DONE;
+        }
+        final boolean done;
+        //fingerprints explicitly requested but not yet sent to the HAL
+        final int notStarted;
+        synchronized (mRemovalLock) {
+            notStarted = mFingerIds.length - mNextIndex;
+        }
+        if (remaining == 0 && notStarted > 0) {
+            //the HAL removes one requested id at a time, report this one and go on with the next
+            sendRemoved(fingerId, getGroupId(), notStarted);
+            done = removeNext() != 0; // done if the next removal failed, error already reported
+        } else {
+            if (remaining == 0) {
+                commitRemovals();
+            }
+            done = sendRemoved(fingerId, getGroupId(), remaining);
+        }
+        if (done) {
+            mLifecycle.finish();
+        }
+        return done;
+    }
+
+    /**
+    * applies the collected removals to the settings in one batch, i.e. one write
+    */
+    private void commitRemovals() {
+        final ArrayList<FingerprintBatchOperation> removals;
+        synchronized (mRemovalLock) {
+            if (mPendingRemovals.isEmpty()) {
+                return;
+            }
+            // swapped out, so a removal reported meanwhile goes to the next batch
+            removals = mPendingRemovals;
+            mPendingRemovals = new ArrayList<>();
+        }
+        FingerprintUtils.getInstance().applyBatchForUser(getContext(), getTargetUserId(),
+                removals);
     }
+
     // remaining - number of remaining available valid attempts to authenticate fingerId before locking
     // fingerId - fingerprint provided by the user
     // groupId - fingerId belongs to the groupId